@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.Label;
+import no.nb.nna.veidemann.api.config.v1.Meta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildLabel;
+
+/**
+ * Cost of label lookups with {@link ApiTools} on meta objects with many labels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ApiToolsBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int labelCount;
+
+    Meta meta;
+
+    Label[] labelsToFind;
+
+    Label missingLabel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Meta.Builder mb = Meta.newBuilder().setName("name");
+        for (int i = 0; i < labelCount; i++) {
+            mb.addLabel(buildLabel("key" + (i % 10), "value" + i));
+        }
+        meta = mb.build();
+
+        labelsToFind = new Label[]{
+                buildLabel("key0", "value0"),
+                buildLabel("key" + ((labelCount - 1) % 10), "value" + (labelCount - 1))};
+        missingLabel = buildLabel("missing", "label");
+    }
+
+    @Benchmark
+    public boolean hasLabel() {
+        return ApiTools.hasLabel(meta, labelsToFind);
+    }
+
+    @Benchmark
+    public boolean hasLabelMissing() {
+        return ApiTools.hasLabel(meta, missingLabel);
+    }
+
+    @Benchmark
+    public Object getFirstLabelWithKey() {
+        return ApiTools.getFirstLabelWithKey(meta, "key9");
+    }
+
+    @Benchmark
+    public String createSha1Digest() {
+        return ApiTools.createSha1Digest("http://www.example.com/path/to/some/page.html?query=value");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.Collection.RotationPolicy;
+import no.nb.nna.veidemann.api.config.v1.Collection.SubCollectionType;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per record cost of resolving the collection name with {@link CollectionNameGenerator}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CollectionNameGeneratorBenchmark {
+
+    @Param({"NONE", "HOURLY", "DAILY", "YEARLY"})
+    RotationPolicy rotationPolicy;
+
+    ConfigObject collectionConfig;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ConfigObject.Builder conf = ConfigObject.newBuilder().setId("collection-id");
+        conf.getMetaBuilder().setName("Test");
+        conf.getCollectionBuilder().setCollectionDedupPolicy(rotationPolicy);
+        conf.getCollectionBuilder().addSubCollectionsBuilder().setName("dns").setType(SubCollectionType.DNS);
+        conf.getCollectionBuilder().addSubCollectionsBuilder().setName("sc").setType(SubCollectionType.SCREENSHOT);
+        collectionConfig = conf.build();
+    }
+
+    @Benchmark
+    public String getCollectionName() {
+        return CollectionNameGenerator.getCollectionName(collectionConfig, SubCollectionType.SCREENSHOT);
+    }
+
+    @Benchmark
+    public String getCollectionNameWithoutSubCollection() {
+        return CollectionNameGenerator.getCollectionName(collectionConfig, SubCollectionType.UNDEFINED);
+    }
+}
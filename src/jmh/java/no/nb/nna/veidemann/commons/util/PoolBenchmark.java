@@ -0,0 +1,79 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.commons.util.Pool.Lease;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease and return throughput for {@link Pool}.
+ * <p>
+ * The pool is shared by all benchmark threads. With a pool size lower than the thread count, threads have to wait
+ * for each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PoolBenchmark {
+
+    @Param({"4", "64"})
+    int poolSize;
+
+    @Param({"LOWEST_INDEX", "LIFO", "THREAD_AFFINITY"})
+    Pool.LeaseStrategy leaseStrategy;
+
+    Pool<Object> pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = Pool.newBuilder(Object::new)
+                .withMaxSize(poolSize)
+                .withLeaseStrategy(leaseStrategy)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.close();
+    }
+
+    private Object leaseAndReturn() throws InterruptedException {
+        try (Lease<Object> lease = pool.lease()) {
+            return lease.getObject();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object uncontended() throws InterruptedException {
+        return leaseAndReturn();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object threads8() throws InterruptedException {
+        return leaseAndReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Object threads64() throws InterruptedException {
+        return leaseAndReturn();
+    }
+}
@@ -0,0 +1,65 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Sha1Digest} over payloads of different sizes, and the cost of producing the digest string.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class Sha1DigestBenchmark {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    @Param({"64", "4096", "65536", "1048576"})
+    int payloadSize;
+
+    ByteString payload;
+
+    Sha1Digest partialDigest;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] bytes = new byte[payloadSize];
+        new Random(42).nextBytes(bytes);
+
+        // Build the payload from several chunks, like a ByteString assembled from a network stream
+        ByteString result = ByteString.EMPTY;
+        int chunkSize = Math.max(1, payloadSize / 8);
+        for (int i = 0; i < payloadSize; i += chunkSize) {
+            result = result.concat(ByteString.copyFrom(bytes, i, Math.min(chunkSize, payloadSize - i)));
+        }
+        payload = result;
+
+        partialDigest = new Sha1Digest().update(payload);
+    }
+
+    @Benchmark
+    public String updateByteString() {
+        return new Sha1Digest().update(payload).getRawDigestString();
+    }
+
+    @Benchmark
+    public String getRawDigestString() {
+        // Mark the digest as changed so that the digest string is computed on every call
+        return partialDigest.update(NO_BYTES).getRawDigestString();
+    }
+}
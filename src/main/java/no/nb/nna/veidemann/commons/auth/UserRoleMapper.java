@@ -22,9 +22,11 @@ import no.nb.nna.veidemann.api.config.v1.Role;
 import no.nb.nna.veidemann.api.config.v1.RoleMapping;
 import no.nb.nna.veidemann.commons.db.DbException;
 import no.nb.nna.veidemann.commons.db.DbService;
+import no.nb.nna.veidemann.commons.util.CachedClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Clock;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,7 +49,14 @@ public class UserRoleMapper {
 
     Lock roleUpdateLock = new ReentrantLock();
 
+    private final Clock clock;
+
     public UserRoleMapper() {
+        this(CachedClock.getDefault());
+    }
+
+    UserRoleMapper(Clock clock) {
+        this.clock = clock;
         updaterService.scheduleAtFixedRate(() -> {
             updateRoleMappings();
         }, 0, 60, TimeUnit.SECONDS);
@@ -125,7 +134,7 @@ public class UserRoleMapper {
                 break;
             case API_KEY:
                 long validUntil = com.google.protobuf.util.Timestamps.toMillis(rm.getApiKey().getValidUntil());
-                if (validUntil <= 0 || validUntil > System.currentTimeMillis()) {
+                if (validUntil <= 0 || validUntil > clock.millis()) {
                     LOG.trace("Adding role for apiKey: {}, roles: {}", rm.getApiKey().getToken(), rm.getRoleList());
                     rm.getRoleList().forEach(role -> addRoleToList(apiKeyRoles, rm.getApiKey().getToken(), role));
                 } else {
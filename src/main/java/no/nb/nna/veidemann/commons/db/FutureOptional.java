@@ -16,11 +16,19 @@
 
 package no.nb.nna.veidemann.commons.db;
 
+import no.nb.nna.veidemann.commons.util.CachedClock;
+
+import java.time.Clock;
+import java.time.Instant;
 import java.time.OffsetDateTime;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneOffset;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -29,19 +37,30 @@ import java.util.function.Consumer;
 public class FutureOptional<T> {
     private static final FutureOptional<?> EMPTY = new FutureOptional<>();
 
+    private static final long NO_TIME = Long.MIN_VALUE;
+
     /**
      * If non-null, the value; if null, indicates no value is present
      */
     private final T value;
 
+    /**
+     * The time for wich a new request might contain a value, if created from an OffsetDateTime
+     */
     private final OffsetDateTime nextPossibleTime;
 
+    /**
+     * The time for wich a new request might contain a value, if created from epoch millis, otherwise NO_TIME
+     */
+    private final long nextPossibleTimeMs;
+
     /**
      * Constructs an empty instance.
      */
     private FutureOptional() {
         this.value = null;
         this.nextPossibleTime = null;
+        this.nextPossibleTimeMs = NO_TIME;
     }
 
     /**
@@ -50,6 +69,17 @@ public class FutureOptional<T> {
     private FutureOptional(OffsetDateTime nextPossibleTime) {
         this.value = null;
         this.nextPossibleTime = nextPossibleTime;
+        this.nextPossibleTimeMs = NO_TIME;
+    }
+
+    /**
+     * Constructs an empty instance with a time in epoch millis for wich a new request for this FutureOptional might
+     * contain a value.
+     */
+    private FutureOptional(long nextPossibleTimeMs) {
+        this.value = null;
+        this.nextPossibleTime = null;
+        this.nextPossibleTimeMs = nextPossibleTimeMs;
     }
 
     /**
@@ -61,6 +91,7 @@ public class FutureOptional<T> {
     private FutureOptional(T value) {
         this.value = Objects.requireNonNull(value);
         this.nextPossibleTime = null;
+        this.nextPossibleTimeMs = NO_TIME;
     }
 
     /**
@@ -76,10 +107,36 @@ public class FutureOptional<T> {
         return t;
     }
 
+    /**
+     * Returns an empty {@code FutureOptional} which might contain a value if requested again after a point in time.
+     *
+     * @param <T> Type of the non-existent value
+     * @param nextPossibleTime the time, or null for an instance without a future time like {@link #empty()}
+     * @return an empty {@code FutureOptional} with a future time
+     */
     public static<T> FutureOptional<T> emptyUntil(OffsetDateTime nextPossibleTime) {
+        if (nextPossibleTime == null) {
+            return empty();
+        }
         return new FutureOptional<>(nextPossibleTime);
     }
 
+    /**
+     * Returns an empty {@code FutureOptional} which might contain a value if requested again after a point in time.
+     * <p>
+     * This is cheaper than {@link #emptyUntil(OffsetDateTime)} when the caller already has the time as epoch millis.
+     *
+     * @param <T> Type of the non-existent value
+     * @param nextPossibleTimeMs the time as milliseconds since the epoch
+     * @return an empty {@code FutureOptional} with a future time
+     */
+    public static<T> FutureOptional<T> emptyUntilEpochMilli(long nextPossibleTimeMs) {
+        if (nextPossibleTimeMs == NO_TIME) {
+            throw new IllegalArgumentException("Illegal time: " + nextPossibleTimeMs);
+        }
+        return new FutureOptional<>(nextPossibleTimeMs);
+    }
+
     /**
      * Returns an {@code FutureOptional} with the specified present non-null value.
      *
@@ -108,18 +165,49 @@ public class FutureOptional<T> {
         return value;
     }
 
+    /**
+     * @return the time for which a new request might contain a value. If created from epoch millis, the offset is UTC
+     * @throws NoSuchElementException if there is no future time present
+     */
     public OffsetDateTime getWhen() {
-        if (nextPossibleTime == null) {
+        if (nextPossibleTime != null) {
+            return nextPossibleTime;
+        }
+        if (nextPossibleTimeMs == NO_TIME) {
             throw new NoSuchElementException("No future time present");
         }
-        return nextPossibleTime;
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(nextPossibleTimeMs), ZoneOffset.UTC);
     }
 
-    public long getDelayMs() {
-        if (nextPossibleTime == null) {
+    /**
+     * @return the time for which a new request might contain a value as milliseconds since the epoch
+     * @throws NoSuchElementException if there is no future time present
+     */
+    public long getWhenEpochMilli() {
+        if (nextPossibleTime != null) {
+            // Same as toInstant().toEpochMilli(), but without creating an Instant
+            return Math.addExact(Math.multiplyExact(nextPossibleTime.toEpochSecond(), 1000L),
+                    nextPossibleTime.getNano() / 1_000_000);
+        }
+        if (nextPossibleTimeMs == NO_TIME) {
             throw new NoSuchElementException("No future time present");
         }
-        long delay = OffsetDateTime.now().until(nextPossibleTime, ChronoUnit.MILLIS);
+        return nextPossibleTimeMs;
+    }
+
+    public long getDelayMs() {
+        return getDelayMs(CachedClock.getDefault());
+    }
+
+    /**
+     * Get the time until a new request might contain a value.
+     *
+     * @param clock the clock to read the current time from
+     * @return the delay in milliseconds, or zero if the time has passed
+     * @throws NoSuchElementException if there is no future time present
+     */
+    public long getDelayMs(Clock clock) {
+        long delay = getWhenEpochMilli() - clock.millis();
         if (delay < 0L) {
             delay = 0;
         }
@@ -136,11 +224,44 @@ public class FutureOptional<T> {
     }
 
     public boolean isMaybeInFuture() {
-        return nextPossibleTime != null;
+        return nextPossibleTime != null || nextPossibleTimeMs != NO_TIME;
     }
 
     public boolean isEmpty() {
-        return value == null && nextPossibleTime == null;
+        return value == null && !isMaybeInFuture();
+    }
+
+    /**
+     * Get a future which is completed with this object when the future time arrives.
+     * <p>
+     * If there is no future time, the returned future is already completed. Cancelling the returned future cancels
+     * the scheduled completion.
+     *
+     * @param scheduler the scheduler used to complete the future
+     * @return the future
+     */
+    public CompletableFuture<FutureOptional<T>> toCompletableFuture(ScheduledExecutorService scheduler) {
+        if (!isMaybeInFuture()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        CompletableFuture<FutureOptional<T>> future = new CompletableFuture<>();
+        ScheduledFuture<?> task = scheduler.schedule(() -> future.complete(this), getDelayMs(), TimeUnit.MILLISECONDS);
+        future.whenComplete((v, t) -> task.cancel(false));
+        return future;
+    }
+
+    /**
+     * Run an action when the future time arrives, instead of polling {@link #getDelayMs()}.
+     * <p>
+     * If there is no future time, the action is run as soon as possible.
+     *
+     * @param scheduler the scheduler running the action
+     * @param action    the action
+     * @return a future which can be used to cancel the action
+     */
+    public ScheduledFuture<?> whenReady(ScheduledExecutorService scheduler, Runnable action) {
+        long delay = isMaybeInFuture() ? getDelayMs() : 0L;
+        return scheduler.schedule(action, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -157,8 +278,8 @@ public class FutureOptional<T> {
     }
 
     public void ifMaybeInFuture(Consumer<OffsetDateTime> consumer) {
-        if (nextPossibleTime != null)
-            consumer.accept(nextPossibleTime);
+        if (isMaybeInFuture())
+            consumer.accept(getWhen());
     }
 
     @Override
@@ -166,8 +287,8 @@ public class FutureOptional<T> {
         if (value != null) {
             return String.format("Optional[%s]", value);
         }
-        if (nextPossibleTime != null) {
-            return String.format("Optional.futureTime[%s]", nextPossibleTime);
+        if (isMaybeInFuture()) {
+            return String.format("Optional.futureTime[%s]", getWhen());
         }
         return "Optional.empty";
     }
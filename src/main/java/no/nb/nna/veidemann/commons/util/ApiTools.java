@@ -15,6 +15,7 @@
  */
 package no.nb.nna.veidemann.commons.util;
 
+import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.GeneratedMessageV3.Builder;
 import com.google.protobuf.Message;
@@ -23,19 +24,37 @@ import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.api.config.v1.ConfigRef;
 import no.nb.nna.veidemann.api.config.v1.Label;
 import no.nb.nna.veidemann.api.config.v1.Meta;
+import no.nb.nna.veidemann.commons.util.ApiTools.ListReplyWalker.CheckedFunction;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
  */
 public class ApiTools {
+    private static final int DEFAULT_PAGE_SIZE = 100;
 
     private ApiTools() {
     }
@@ -102,13 +121,14 @@ public class ApiTools {
     }
 
     public static String createSha1Digest(String val) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(val.getBytes());
-            return new BigInteger(1, md.digest()).toString(16);
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
+        // Leading zeros are stripped to stay compatible with digests created by earlier versions.
+        // Use DigestFactory.sha1Hex for fixed width output.
+        String hex = DigestFactory.sha1Hex(val);
+        int start = 0;
+        while (start < hex.length() - 1 && hex.charAt(start) == '0') {
+            start++;
         }
+        return start == 0 ? hex : hex.substring(start);
     }
 
     /**
@@ -122,6 +142,9 @@ public class ApiTools {
      * r -> db.listSeeds(r),
      * v -> values.add(System.out.println(v)));
      * </code>
+     * <p>
+     * The paging fields are looked up by name with the protobuf descriptors. See {@link TypedListReplyWalker} for
+     * a walker using accessors instead.
      *
      * @param <R> request type
      * @param <V> value list element type
@@ -138,52 +161,454 @@ public class ApiTools {
          * @param consumer       the function to be applied to all elements of the result
          */
         public void walk(Builder requestBuilder, CheckedFunction<R, ? extends Message> fetchFunc, Consumer<V> consumer) {
-            FieldDescriptor pageField = requestBuilder.getDescriptorForType().findFieldByName("page");
-            FieldDescriptor pageSizeField = requestBuilder.getDescriptorForType().findFieldByName("page_size");
+            new PageWalker<>(new DescriptorPager<R, V>(requestBuilder), fetchFunc).walk(consumer);
+        }
+
+        /**
+         * Walk every element from the request while fetching the next pages in the background.
+         * <p>
+         * Up to {@code prefetchPages} pages after the one being consumed are requested ahead, so that the time spent
+         * fetching overlaps with the time spent consuming. The requests are built on the calling thread, only the
+         * fetch func is run by the executor.
+         *
+         * @param requestBuilder a builder for the request.
+         * @param fetchFunc      a function taking a request and returning a result set
+         * @param consumer       the function to be applied to all elements of the result
+         * @param prefetchPages  the number of pages to request ahead of the consumer
+         * @param executor       the executor running the fetch func
+         */
+        public void walk(Builder requestBuilder, CheckedFunction<R, ? extends Message> fetchFunc, Consumer<V> consumer,
+                         int prefetchPages, Executor executor) {
+            new PageWalker<>(new DescriptorPager<R, V>(requestBuilder), fetchFunc)
+                    .walk(consumer, prefetchPages, executor);
+        }
+
+        /**
+         * Walk every element from the request by fetching pages in parallel.
+         * <p>
+         * The number of elements is counted first to find the number of pages, which are then fetched with up to
+         * {@code parallelism} requests in flight. Elements added after counting are fetched sequentially at the end.
+         * The consumer is always called from the calling thread.
+         *
+         * @param requestBuilder a builder for the request.
+         * @param fetchFunc      a function taking a request and returning a result set
+         * @param countFunc      a function taking a request and returning the number of elements in the result set
+         * @param consumer       the function to be applied to all elements of the result
+         * @param parallelism    the maximum number of pages fetched at the same time
+         * @param executor       the executor running the fetch func
+         * @param ordered        true if the elements should be consumed in page order, false to consume the pages
+         *                       as they arrive
+         */
+        public void walkParallel(Builder requestBuilder, CheckedFunction<R, ? extends Message> fetchFunc,
+                                 CheckedFunction<R, Long> countFunc, Consumer<V> consumer, int parallelism,
+                                 Executor executor, boolean ordered) {
+            new PageWalker<>(new DescriptorPager<R, V>(requestBuilder), fetchFunc)
+                    .walkParallel(countFunc, consumer, parallelism, executor, ordered);
+        }
+
+        /**
+         * Create a lazy stream of every element from the request.
+         * <p>
+         * Pages are fetched when the stream needs more elements, so short-circuiting operations like
+         * {@link Stream#findFirst()} or {@link Stream#limit(long)} stop the fetching as soon as they are satisfied.
+         *
+         * @param requestBuilder a builder for the request.
+         * @param fetchFunc      a function taking a request and returning a result set
+         * @return a sequential stream of the elements
+         */
+        public Stream<V> stream(Builder requestBuilder, CheckedFunction<R, ? extends Message> fetchFunc) {
+            return new PageWalker<>(new DescriptorPager<R, V>(requestBuilder), fetchFunc).stream();
+        }
+
+        @FunctionalInterface
+        public interface CheckedFunction<T, R> {
+            R apply(T t) throws Exception;
+        }
+    }
+
+    /**
+     * Helper class for traversing all values of a paged result using accessors for the paging fields.
+     * <p>
+     * Typical usage:
+     * <code>
+     * TypedListReplyWalker<SeedListRequest.Builder, SeedListRequest, SeedListReply, Seed> walker =
+     * new TypedListReplyWalker<>(SeedListRequest.Builder::setPage, SeedListRequest.Builder::getPageSize,
+     * SeedListRequest.Builder::setPageSize, SeedListRequest.Builder::build, SeedListReply::getValueList);
+     * <p>
+     * walker.walk(SeedListRequest.newBuilder().setName("foo"),
+     * r -> db.listSeeds(r),
+     * v -> values.add(v));
+     * </code>
+     * <p>
+     * The walker is stateless and can be shared.
+     *
+     * @param <B> request builder type
+     * @param <R> request type
+     * @param <P> result set type
+     * @param <V> value list element type
+     */
+    public static class TypedListReplyWalker<B extends Message.Builder, R extends Message, P extends Message, V> {
+        private final ObjIntConsumer<B> setPage;
+        private final ToIntFunction<B> getPageSize;
+        private final ObjIntConsumer<B> setPageSize;
+        private final Function<B, R> build;
+        private final Function<P, List<V>> getValueList;
+
+        /**
+         * @param setPage      sets the page number in the request builder
+         * @param getPageSize  gets the page size from the request builder
+         * @param setPageSize  sets the page size in the request builder
+         * @param build        builds the request
+         * @param getValueList gets the values from a result set
+         */
+        public TypedListReplyWalker(ObjIntConsumer<B> setPage, ToIntFunction<B> getPageSize,
+                                    ObjIntConsumer<B> setPageSize, Function<B, R> build,
+                                    Function<P, List<V>> getValueList) {
+            this.setPage = Objects.requireNonNull(setPage, "setPage");
+            this.getPageSize = Objects.requireNonNull(getPageSize, "getPageSize");
+            this.setPageSize = Objects.requireNonNull(setPageSize, "setPageSize");
+            this.build = Objects.requireNonNull(build, "build");
+            this.getValueList = Objects.requireNonNull(getValueList, "getValueList");
+        }
+
+        /**
+         * Walk every element from the request.
+         *
+         * @see ListReplyWalker#walk(Builder, CheckedFunction, Consumer)
+         */
+        public void walk(B requestBuilder, CheckedFunction<R, ? extends P> fetchFunc, Consumer<V> consumer) {
+            new PageWalker<>(new TypedPager(requestBuilder), fetchFunc).walk(consumer);
+        }
 
-            if (pageField == null || pageSizeField == null) {
+        /**
+         * Walk every element from the request while fetching the next pages in the background.
+         *
+         * @see ListReplyWalker#walk(Builder, CheckedFunction, Consumer, int, Executor)
+         */
+        public void walk(B requestBuilder, CheckedFunction<R, ? extends P> fetchFunc, Consumer<V> consumer,
+                         int prefetchPages, Executor executor) {
+            new PageWalker<>(new TypedPager(requestBuilder), fetchFunc).walk(consumer, prefetchPages, executor);
+        }
+
+        /**
+         * Walk every element from the request by fetching pages in parallel.
+         *
+         * @see ListReplyWalker#walkParallel(Builder, CheckedFunction, CheckedFunction, Consumer, int, Executor, boolean)
+         */
+        public void walkParallel(B requestBuilder, CheckedFunction<R, ? extends P> fetchFunc,
+                                 CheckedFunction<R, Long> countFunc, Consumer<V> consumer, int parallelism,
+                                 Executor executor, boolean ordered) {
+            new PageWalker<>(new TypedPager(requestBuilder), fetchFunc)
+                    .walkParallel(countFunc, consumer, parallelism, executor, ordered);
+        }
+
+        /**
+         * Create a lazy stream of every element from the request.
+         *
+         * @see ListReplyWalker#stream(Builder, CheckedFunction)
+         */
+        public Stream<V> stream(B requestBuilder, CheckedFunction<R, ? extends P> fetchFunc) {
+            return new PageWalker<>(new TypedPager(requestBuilder), fetchFunc).stream();
+        }
+
+        private class TypedPager implements Pager<R, P, V> {
+            private final B requestBuilder;
+            private final int pageSize;
+
+            private TypedPager(B requestBuilder) {
+                this.requestBuilder = requestBuilder;
+                if (getPageSize.applyAsInt(requestBuilder) == 0) {
+                    setPageSize.accept(requestBuilder, DEFAULT_PAGE_SIZE);
+                }
+                pageSize = getPageSize.applyAsInt(requestBuilder);
+            }
+
+            @Override
+            public R request(int page) {
+                setPage.accept(requestBuilder, page);
+                return build.apply(requestBuilder);
+            }
+
+            @Override
+            public List<V> values(P resultSet) {
+                return getValueList.apply(resultSet);
+            }
+
+            @Override
+            public int pageSize() {
+                return pageSize;
+            }
+        }
+    }
+
+    /**
+     * Builds the request for a page and extracts the values from the result set.
+     */
+    interface Pager<R, P, V> {
+        R request(int page);
+
+        List<V> values(P resultSet);
+
+        int pageSize();
+    }
+
+    /**
+     * Pager finding the paging fields by name. The field lookups are cached for each message type.
+     */
+    static class DescriptorPager<R extends Message, V> implements Pager<R, Message, V> {
+        private static final Map<Descriptor, FieldDescriptor[]> requestFields = new ConcurrentHashMap<>();
+        private static final Map<Descriptor, FieldDescriptor> resultValuesFields = new ConcurrentHashMap<>();
+
+        private final Message.Builder requestBuilder;
+        private final FieldDescriptor pageField;
+        private final int pageSize;
+
+        DescriptorPager(Message.Builder requestBuilder) {
+            this.requestBuilder = requestBuilder;
+            FieldDescriptor[] fields = requestFields.computeIfAbsent(requestBuilder.getDescriptorForType(), d -> {
+                FieldDescriptor page = d.findFieldByName("page");
+                FieldDescriptor pageSize = d.findFieldByName("page_size");
+                return page == null || pageSize == null ? null : new FieldDescriptor[]{page, pageSize};
+            });
+
+            if (fields == null) {
                 throw new IllegalArgumentException("The request is not a paging list request");
             }
+            pageField = fields[0];
+            FieldDescriptor pageSizeField = fields[1];
 
             if (requestBuilder.getField(pageSizeField).equals(0)) {
-                requestBuilder.setField(pageSizeField, 100);
+                requestBuilder.setField(pageSizeField, DEFAULT_PAGE_SIZE);
+            }
+            pageSize = (Integer) requestBuilder.getField(pageSizeField);
+        }
+
+        @Override
+        public R request(int page) {
+            return (R) requestBuilder.setField(pageField, page).build();
+        }
+
+        @Override
+        public List<V> values(Message resultSet) {
+            FieldDescriptor resultValuesField = resultValuesFields.computeIfAbsent(resultSet.getDescriptorForType(),
+                    d -> {
+                        FieldDescriptor f = d.findFieldByName("value");
+                        return f == null || !f.isRepeated() ? null : f;
+                    });
+
+            if (resultValuesField == null) {
+                throw new IllegalArgumentException("Fetch func returned a response which is not a value list");
             }
+            return (List<V>) resultSet.getField(resultValuesField);
+        }
 
+        @Override
+        public int pageSize() {
+            return pageSize;
+        }
+    }
+
+    /**
+     * The paging strategies shared by {@link ListReplyWalker} and {@link TypedListReplyWalker}.
+     */
+    static class PageWalker<R, P, V> {
+        private final Pager<R, P, V> pager;
+        private final CheckedFunction<R, ? extends P> fetchFunc;
+
+        PageWalker(Pager<R, P, V> pager, CheckedFunction<R, ? extends P> fetchFunc) {
+            this.pager = pager;
+            this.fetchFunc = fetchFunc;
+        }
+
+        void walk(Consumer<V> consumer) {
             int page = 0;
+            List<V> resultValues = fetch(page);
 
-            R request = (R) requestBuilder.setField(pageField, page).build();
+            while (!resultValues.isEmpty()) {
+                for (V obj : resultValues) {
+                    consumer.accept(obj);
+                }
+                resultValues = fetch(++page);
+            }
+        }
 
-            Message resultSet = null;
+        private void walk(Consumer<V> consumer, int prefetchPages, Executor executor) {
+            if (prefetchPages < 1) {
+                throw new IllegalArgumentException("prefetchPages must be at least 1");
+            }
+            walkOrdered(consumer, prefetchPages + 1, executor, Integer.MAX_VALUE);
+        }
+
+        private void walkParallel(CheckedFunction<R, Long> countFunc, Consumer<V> consumer, int parallelism,
+                                  Executor executor, boolean ordered) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be at least 1");
+            }
+
+            long count;
             try {
-                resultSet = fetchFunc.apply(request);
+                count = countFunc.apply(pager.request(0));
             } catch (Exception e) {
-                throw new RuntimeException("Fetch func failed");
+                throw new RuntimeException("Count func failed", e);
             }
-            FieldDescriptor resultValuesField = resultSet.getDescriptorForType().findFieldByName("value");
+            int pageSize = pager.pageSize();
+            int pageCount = (int) Math.min(Integer.MAX_VALUE, (count + pageSize - 1) / pageSize);
 
-            if (resultValuesField == null || !resultValuesField.isRepeated()) {
-                throw new IllegalArgumentException("Fetch func returned a response which is not a value list");
+            boolean lastPageFull;
+            if (ordered) {
+                lastPageFull = walkOrdered(consumer, parallelism, executor, pageCount);
+            } else {
+                lastPageFull = walkUnordered(consumer, parallelism, executor, pageCount);
             }
 
-            List<V> resultValues = (List<V>) resultSet.getField(resultValuesField);
-
-            while (!resultValues.isEmpty()) {
+            // The count might be outdated, continue until an empty page is found
+            for (int page = pageCount; lastPageFull; page++) {
+                List<V> resultValues = fetch(page);
                 for (V obj : resultValues) {
                     consumer.accept(obj);
                 }
-                request = (R) requestBuilder.setField(pageField, ++page).build();
-                try {
-                    resultSet = fetchFunc.apply(request);
-                } catch (Exception e) {
-                    throw new RuntimeException("Fetch func failed");
+                lastPageFull = resultValues.size() >= pageSize;
+            }
+        }
+
+        private Stream<V> stream() {
+            return StreamSupport.stream(new PageSpliterator(), false);
+        }
+
+        /**
+         * Consume pages in order with up to {@code window} pages fetched ahead.
+         *
+         * @return true if all pages up to the page limit were full, i.e. there might be more elements
+         */
+        private boolean walkOrdered(Consumer<V> consumer, int window, Executor executor, int pageLimit) {
+            Deque<CompletableFuture<P>> pending = new ArrayDeque<>(window);
+            int nextPage = 0;
+            boolean lastPageFull = true;
+            try {
+                while (true) {
+                    while (pending.size() < window && nextPage < pageLimit) {
+                        R request = pager.request(nextPage++);
+                        pending.add(CompletableFuture.supplyAsync(() -> fetch(request), executor));
+                    }
+                    if (pending.isEmpty()) {
+                        return lastPageFull;
+                    }
+
+                    List<V> resultValues = pager.values(await(pending.poll()));
+                    if (resultValues.isEmpty()) {
+                        return false;
+                    }
+                    for (V obj : resultValues) {
+                        consumer.accept(obj);
+                    }
+                    lastPageFull = resultValues.size() >= pager.pageSize();
+                }
+            } finally {
+                // Pages beyond the end of the result set or not needed because of an error
+                for (CompletableFuture<P> f : pending) {
+                    f.cancel(false);
                 }
-                resultValues = (List) resultSet.getField(resultValuesField);
             }
         }
 
-        @FunctionalInterface
-        public interface CheckedFunction<T, R> {
-            R apply(T t) throws Exception;
+        /**
+         * Consume pages in the order they arrive with up to {@code parallelism} pages fetched at the same time.
+         *
+         * @return true if the last page was full, i.e. there might be more elements
+         */
+        private boolean walkUnordered(Consumer<V> consumer, int parallelism, Executor executor, int pageCount) {
+            BlockingQueue<CompletableFuture<P>> completed = new LinkedBlockingQueue<>();
+            Map<CompletableFuture<P>, Integer> pending = new HashMap<>();
+            int nextPage = 0;
+            boolean lastPageFull = pageCount == 0;
+            try {
+                while (nextPage < pageCount || !pending.isEmpty()) {
+                    while (pending.size() < parallelism && nextPage < pageCount) {
+                        R request = pager.request(nextPage);
+                        CompletableFuture<P> f = CompletableFuture.supplyAsync(() -> fetch(request), executor);
+                        pending.put(f, nextPage++);
+                        f.whenComplete((r, t) -> completed.add(f));
+                    }
+
+                    CompletableFuture<P> f = completed.take();
+                    int page = pending.remove(f);
+                    List<V> resultValues = pager.values(await(f));
+                    for (V obj : resultValues) {
+                        consumer.accept(obj);
+                    }
+                    if (page == pageCount - 1) {
+                        lastPageFull = resultValues.size() >= pager.pageSize();
+                    }
+                }
+                return lastPageFull;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for page", e);
+            } finally {
+                for (CompletableFuture<P> f : pending.keySet()) {
+                    f.cancel(false);
+                }
+            }
+        }
+
+        private List<V> fetch(int page) {
+            return pager.values(fetch(pager.request(page)));
+        }
+
+        private P fetch(R request) {
+            try {
+                return fetchFunc.apply(request);
+            } catch (Exception e) {
+                throw new RuntimeException("Fetch func failed", e);
+            }
+        }
+
+        private static <P> P await(CompletableFuture<P> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        private class PageSpliterator implements Spliterator<V> {
+            private int page = 0;
+            private Iterator<V> current = Collections.emptyIterator();
+            private boolean exhausted = false;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super V> action) {
+                while (!current.hasNext()) {
+                    if (exhausted) {
+                        return false;
+                    }
+                    List<V> resultValues = fetch(page++);
+                    if (resultValues.isEmpty()) {
+                        exhausted = true;
+                    }
+                    current = resultValues.iterator();
+                }
+                action.accept(current.next());
+                return true;
+            }
+
+            @Override
+            public Spliterator<V> trySplit() {
+                return null;
+            }
+
+            @Override
+            public long estimateSize() {
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public int characteristics() {
+                return ORDERED | NONNULL;
+            }
         }
     }
 
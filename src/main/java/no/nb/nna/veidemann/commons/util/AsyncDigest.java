@@ -0,0 +1,152 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SHA-1 digest computed on a worker thread, so that hashing overlaps with the I/O of the thread producing content.
+ * <p>
+ * Chunks are handed to the worker through a bounded queue. When the queue is full, {@link #update(ByteString)}
+ * blocks until the worker has caught up. One thread must do all the updates and call {@link #complete()}.
+ */
+public class AsyncDigest {
+    private static final ByteString END = ByteString.EMPTY;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    static final ExecutorService digestService = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "async-digest-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Sha1Digest digest = new Sha1Digest();
+    private final BlockingQueue<ByteString> queue;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private boolean completed;
+
+    /**
+     * Create an async digest running on a shared pool of daemon threads.
+     *
+     * @param queueCapacity the maximum number of chunks waiting to be hashed
+     */
+    public AsyncDigest(int queueCapacity) {
+        this(queueCapacity, digestService);
+    }
+
+    /**
+     * Create an async digest.
+     *
+     * @param queueCapacity the maximum number of chunks waiting to be hashed
+     * @param executor      the executor running the worker. The worker occupies a thread until the digest is complete
+     */
+    public AsyncDigest(int queueCapacity, Executor executor) {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        executor.execute(this::run);
+    }
+
+    /**
+     * Add a chunk to the digest. The ByteString is immutable, so it is hashed without copying.
+     *
+     * @param data the chunk
+     * @return this object
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public AsyncDigest update(ByteString data) throws InterruptedException {
+        if (completed) {
+            throw new IllegalStateException("Digest is already completed");
+        }
+        if (result.isDone()) {
+            // The worker failed or the digest was cancelled. Stop feeding it
+            throw new IllegalStateException("Digest is not running");
+        }
+        if (!data.isEmpty()) {
+            queue.put(data);
+        }
+        return this;
+    }
+
+    /**
+     * Add a chunk to the digest. The remaining bytes are copied since the buffer might be reused by the caller.
+     *
+     * @param data the chunk
+     * @return this object
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public AsyncDigest update(ByteBuffer data) throws InterruptedException {
+        return update(ByteString.copyFrom(data));
+    }
+
+    /**
+     * Add a chunk to the digest. The bytes are copied since the array might be reused by the caller.
+     *
+     * @param data the chunk
+     * @return this object
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public AsyncDigest update(byte... data) throws InterruptedException {
+        return update(ByteString.copyFrom(data));
+    }
+
+    /**
+     * Signal that there is no more content.
+     *
+     * @return a future which is completed with the prefixed digest string when all chunks are hashed
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public CompletableFuture<String> complete() throws InterruptedException {
+        if (!completed) {
+            completed = true;
+            if (!result.isDone()) {
+                queue.put(END);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a future which is completed with the prefixed digest string when {@link #complete()} is called and all
+     * chunks are hashed
+     */
+    public CompletableFuture<String> getResult() {
+        return result;
+    }
+
+    /**
+     * Stop hashing and drop queued chunks. The result is completed exceptionally.
+     */
+    public void cancel() {
+        if (result.cancel(false)) {
+            queue.clear();
+            // Wake up the worker in case it is waiting for more chunks
+            queue.offer(END);
+        }
+    }
+
+    private void run() {
+        try {
+            while (!result.isDone()) {
+                ByteString chunk = queue.take();
+                if (chunk == END) {
+                    result.complete(digest.getPrefixedDigestString());
+                } else {
+                    digest.update(chunk);
+                }
+            }
+        } catch (InterruptedException e) {
+            result.completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        } finally {
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package no.nb.nna.veidemann.commons.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A UTC clock which reads the system time at a fixed resolution and caches it.
+ * <p>
+ * Reading {@link #millis()} is a volatile read, which makes it suitable for hot paths where a few milliseconds of
+ * inaccuracy doesn't matter. Code reading time through a {@link Clock} can be given a fixed or fake clock in tests.
+ */
+public final class CachedClock extends Clock implements AutoCloseable {
+    static final ScheduledExecutorService tickerService = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cached-clock");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final CachedClock DEFAULT = new CachedClock(Duration.ofMillis(10));
+
+    private final Clock source = Clock.systemUTC();
+    private final ScheduledFuture<?> ticker;
+    private volatile long millis;
+
+    private CachedClock(Duration resolution) {
+        long resolutionMicros = resolution.toNanos() / 1000;
+        if (resolutionMicros < 1) {
+            throw new IllegalArgumentException("Resolution must be at least one microsecond");
+        }
+        millis = source.millis();
+        ticker = tickerService.scheduleAtFixedRate(this::tick, resolutionMicros, resolutionMicros,
+                TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @return the shared clock with a resolution of 10 milliseconds. It should not be closed
+     */
+    public static CachedClock getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Create a clock with its own resolution. The clock must be closed when no longer needed.
+     *
+     * @param resolution the interval between updates of the cached time
+     * @return the clock
+     */
+    public static CachedClock create(Duration resolution) {
+        return new CachedClock(resolution);
+    }
+
+    private void tick() {
+        millis = source.millis();
+    }
+
+    /**
+     * @return the cached time as milliseconds since the epoch
+     */
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        if (ZoneOffset.UTC.equals(zone)) {
+            return this;
+        }
+        return new ZonedView(this, zone);
+    }
+
+    /**
+     * Stop updating the cached time.
+     */
+    @Override
+    public void close() {
+        if (this == DEFAULT) {
+            throw new IllegalStateException("The default clock can't be closed");
+        }
+        ticker.cancel(false);
+    }
+
+    @Override
+    public String toString() {
+        return "CachedClock[" + instant() + "]";
+    }
+
+    /**
+     * A view of a cached clock in another time zone.
+     */
+    private static final class ZonedView extends Clock {
+        private final CachedClock clock;
+        private final ZoneId zone;
+
+        private ZonedView(CachedClock clock, ZoneId zone) {
+            this.clock = clock;
+            this.zone = zone;
+        }
+
+        @Override
+        public long millis() {
+            return clock.millis();
+        }
+
+        @Override
+        public Instant instant() {
+            return clock.instant();
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return clock.withZone(zone);
+        }
+    }
+}
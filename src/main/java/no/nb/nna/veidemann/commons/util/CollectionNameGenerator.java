@@ -17,7 +17,6 @@
 package no.nb.nna.veidemann.commons.util;
 
 import no.nb.nna.veidemann.api.config.v1.Collection.RotationPolicy;
-import no.nb.nna.veidemann.api.config.v1.Collection.SubCollection;
 import no.nb.nna.veidemann.api.config.v1.Collection.SubCollectionType;
 import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 
@@ -32,17 +31,13 @@ public class CollectionNameGenerator {
     static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("YYYYMM");
     static final DateTimeFormatter YEAR_FORMAT = DateTimeFormatter.ofPattern("YYYY");
 
+    private static final CollectionNameResolver resolver = new CollectionNameResolver(CachedClock.getDefault());
+
     private CollectionNameGenerator() {
     }
 
     public static String getCollectionName(ConfigObject collectionConfig, SubCollectionType subType) {
-        String collectionName = createBaseCollectionName(collectionConfig, OffsetDateTime.now(ZoneOffset.UTC));
-        for (SubCollection sub : collectionConfig.getCollection().getSubCollectionsList()) {
-            if (sub.getType() == subType) {
-                return collectionName + "_" + sub.getName();
-            }
-        }
-        return collectionName;
+        return resolver.getCollectionName(collectionConfig, subType);
     }
 
     public static String createBaseCollectionName(ConfigObject collectionConfig, OffsetDateTime timestamp) {
@@ -0,0 +1,140 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.Timestamp;
+import no.nb.nna.veidemann.api.config.v1.Collection.RotationPolicy;
+import no.nb.nna.veidemann.api.config.v1.Collection.SubCollection;
+import no.nb.nna.veidemann.api.config.v1.Collection.SubCollectionType;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves collection names like {@link CollectionNameGenerator#getCollectionName(ConfigObject, SubCollectionType)},
+ * but caches the names for each collection until the start of the next rotation period.
+ * <p>
+ * Resolving a cached name is a map lookup, a volatile read and a clock read. The names of a collection are
+ * recomputed when the period ends or when a different version of the collection config is submitted. Versions are
+ * told apart by {@code meta.last_modified}, which the config store updates on every save. Use
+ * {@link #invalidate(String)} if a config is changed without updating it. Configs which have never been saved have
+ * no version and are compared in full.
+ */
+public class CollectionNameResolver {
+    private final Clock clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public CollectionNameResolver() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * @param clock the clock used to find the current rotation period
+     */
+    public CollectionNameResolver(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the name of a collection for the current rotation period.
+     *
+     * @param collectionConfig the collection config
+     * @param subType          the type of sub collection
+     * @return the name of the sub collection if the collection has one of the requested type, otherwise the base
+     * collection name
+     */
+    public String getCollectionName(ConfigObject collectionConfig, SubCollectionType subType) {
+        long now = clock.millis();
+        Entry entry = entries.get(collectionConfig.getId());
+        if (entry == null || entry.validUntil <= now || !entry.isFor(collectionConfig)) {
+            entry = new Entry(collectionConfig, now);
+            entries.put(collectionConfig.getId(), entry);
+        }
+        String name = entry.subCollectionNames.get(subType);
+        return name == null ? entry.baseName : name;
+    }
+
+    /**
+     * Remove the cached names of a collection.
+     *
+     * @param collectionId the id of the collection
+     */
+    public void invalidate(String collectionId) {
+        entries.remove(collectionId);
+    }
+
+    /**
+     * Remove the cached names of all collections.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the start of the rotation period after the one containing a timestamp.
+     * <p>
+     * The rotation keys use week based years, which might change in the middle of a month, so every policy except
+     * hourly is checked again at the next day.
+     *
+     * @param policy    the rotation policy
+     * @param timestamp epoch millis
+     * @return epoch millis of the next time the rotation key might change
+     */
+    static long nextBoundary(RotationPolicy policy, long timestamp) {
+        Instant instant = Instant.ofEpochMilli(timestamp);
+        switch (policy) {
+            case HOURLY:
+                return instant.truncatedTo(ChronoUnit.HOURS).plus(1, ChronoUnit.HOURS).toEpochMilli();
+            case DAILY:
+            case MONTHLY:
+            case YEARLY:
+                return instant.truncatedTo(ChronoUnit.DAYS).plus(1, ChronoUnit.DAYS).toEpochMilli();
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The names of a collection for one rotation period.
+     */
+    private static class Entry {
+        private final ConfigObject config;
+        private final Timestamp lastModified;
+        private final long validUntil;
+        private final String baseName;
+        private final Map<SubCollectionType, String> subCollectionNames = new EnumMap<>(SubCollectionType.class);
+
+        private Entry(ConfigObject config, long now) {
+            this.config = config;
+            this.lastModified = config.getMeta().getLastModified();
+            RotationPolicy policy = config.getCollection().getCollectionDedupPolicy();
+            this.validUntil = nextBoundary(policy, now);
+            this.baseName = CollectionNameGenerator.createBaseCollectionName(config,
+                    OffsetDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneOffset.UTC));
+            for (SubCollection sub : config.getCollection().getSubCollectionsList()) {
+                // The first sub collection of a type wins
+                subCollectionNames.putIfAbsent(sub.getType(), baseName + "_" + sub.getName());
+            }
+        }
+
+        /**
+         * Check if this entry was made from the same version of the config. The entries are keyed on the id, so
+         * only the version needs to be compared.
+         */
+        private boolean isFor(ConfigObject collectionConfig) {
+            if (config == collectionConfig) {
+                return true;
+            }
+            Timestamp t = collectionConfig.getMeta().getLastModified();
+            if (t.getSeconds() != lastModified.getSeconds() || t.getNanos() != lastModified.getNanos()) {
+                return false;
+            }
+            return t.getSeconds() != 0L || t.getNanos() != 0 || config.equals(collectionConfig);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package no.nb.nna.veidemann.commons.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable set of non-negative ints, stored sorted as variable length encoded deltas.
+ * <p>
+ * Dense sets of small ids, like the postings of an inverted index, take one or two bytes per element. Set operations
+ * are merges of the sorted sequences and create new sets.
+ */
+public final class CompressedIntSet {
+    public static final CompressedIntSet EMPTY = new CompressedIntSet(new byte[0], 0, 0);
+
+    private final byte[] data;
+    private final int length;
+    private final int size;
+
+    private CompressedIntSet(byte[] data, int length, int size) {
+        this.data = data;
+        this.length = length;
+        this.size = size;
+    }
+
+    /**
+     * Create a set from values in any order. Duplicates are ignored.
+     *
+     * @param values the values
+     * @return the set
+     */
+    public static CompressedIntSet of(int... values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        Builder builder = new Builder();
+        for (int v : sorted) {
+            builder.add(v);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of bytes used for the encoded elements
+     */
+    public int getEncodedSize() {
+        return length;
+    }
+
+    public boolean contains(int value) {
+        PrimitiveIterator.OfInt it = iterator();
+        while (it.hasNext()) {
+            int v = it.nextInt();
+            if (v >= value) {
+                return v == value;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return an iterator over the elements in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new Iter();
+    }
+
+    public int[] toArray() {
+        int[] result = new int[size];
+        PrimitiveIterator.OfInt it = iterator();
+        for (int i = 0; i < size; i++) {
+            result[i] = it.nextInt();
+        }
+        return result;
+    }
+
+    /**
+     * @param value the value to add
+     * @return a set with the value added, or this set if the value is already present
+     */
+    public CompressedIntSet with(int value) {
+        return contains(value) ? this : or(of(value));
+    }
+
+    /**
+     * @param value the value to remove
+     * @return a set with the value removed, or this set if the value is not present
+     */
+    public CompressedIntSet without(int value) {
+        return contains(value) ? andNot(of(value)) : this;
+    }
+
+    /**
+     * @param other the other set
+     * @return the intersection of this set and the other set
+     */
+    public CompressedIntSet and(CompressedIntSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        PrimitiveIterator.OfInt a = iterator();
+        PrimitiveIterator.OfInt b = other.iterator();
+        int x = a.nextInt();
+        int y = b.nextInt();
+        while (true) {
+            if (x < y) {
+                if (!a.hasNext()) {
+                    break;
+                }
+                x = a.nextInt();
+            } else if (x > y) {
+                if (!b.hasNext()) {
+                    break;
+                }
+                y = b.nextInt();
+            } else {
+                builder.add(x);
+                if (!a.hasNext() || !b.hasNext()) {
+                    break;
+                }
+                x = a.nextInt();
+                y = b.nextInt();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param other the other set
+     * @return the union of this set and the other set
+     */
+    public CompressedIntSet or(CompressedIntSet other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        Builder builder = new Builder();
+        PrimitiveIterator.OfInt a = iterator();
+        PrimitiveIterator.OfInt b = other.iterator();
+        int x = a.nextInt();
+        int y = b.nextInt();
+        while (true) {
+            if (x < y) {
+                builder.add(x);
+                if (!a.hasNext()) {
+                    builder.add(y);
+                    break;
+                }
+                x = a.nextInt();
+            } else if (x > y) {
+                builder.add(y);
+                if (!b.hasNext()) {
+                    builder.add(x);
+                    break;
+                }
+                y = b.nextInt();
+            } else {
+                builder.add(x);
+                if (!a.hasNext() || !b.hasNext()) {
+                    break;
+                }
+                x = a.nextInt();
+                y = b.nextInt();
+            }
+        }
+        // At most one of the iterators has elements left
+        while (a.hasNext()) {
+            builder.add(a.nextInt());
+        }
+        while (b.hasNext()) {
+            builder.add(b.nextInt());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param other the other set
+     * @return the elements of this set which are not in the other set
+     */
+    public CompressedIntSet andNot(CompressedIntSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        Builder builder = new Builder();
+        PrimitiveIterator.OfInt b = other.iterator();
+        int y = b.nextInt();
+        PrimitiveIterator.OfInt a = iterator();
+        while (a.hasNext()) {
+            int x = a.nextInt();
+            while (y < x && b.hasNext()) {
+                y = b.nextInt();
+            }
+            if (x != y) {
+                builder.add(x);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CompressedIntSet that = (CompressedIntSet) o;
+        if (size != that.size || length != that.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[i] != that.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = size;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + data[i];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private class Iter implements PrimitiveIterator.OfInt {
+        private int pos = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return pos < length;
+        }
+
+        @Override
+        public int nextInt() {
+            if (pos >= length) {
+                throw new NoSuchElementException();
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            last += delta;
+            return last;
+        }
+    }
+
+    /**
+     * Builder for sets from values in ascending order.
+     */
+    public static final class Builder {
+        private byte[] data = new byte[16];
+        private int length = 0;
+        private int size = 0;
+        private int last = -1;
+
+        /**
+         * @param value the value to add, which must not be less than the previous value. Adding the previous value
+         *              again has no effect
+         * @return this builder
+         */
+        public Builder add(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Values must be non-negative");
+            }
+            if (value <= last) {
+                if (value == last) {
+                    return this;
+                }
+                throw new IllegalArgumentException("Values must be added in ascending order");
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            // Deltas are at least 1, the first value is stored as value + 1
+            int delta = value - last;
+            while ((delta & ~0x7f) != 0) {
+                data[length++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = value;
+            size++;
+            return this;
+        }
+
+        public CompressedIntSet build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new CompressedIntSet(Arrays.copyOf(data, length), length, size);
+        }
+    }
+}
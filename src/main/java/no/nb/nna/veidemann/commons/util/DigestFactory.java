@@ -0,0 +1,121 @@
+package no.nb.nna.veidemann.commons.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Factory for SHA-1 digests which reuses a {@link MessageDigest} for each thread instead of looking up the provider
+ * for every digest.
+ * <p>
+ * Strings are hashed as UTF-8, encoded straight from the chars into a reusable buffer.
+ */
+public final class DigestFactory {
+    private static final MessageDigest SHA1_PROTOTYPE = createSha1();
+
+    private static final ThreadLocal<Sha1State> sha1State = ThreadLocal.withInitial(Sha1State::new);
+
+    private DigestFactory() {
+    }
+
+    /**
+     * Create a new SHA-1 MessageDigest.
+     * <p>
+     * The returned object is cloned from a prototype, which is cheaper than {@link MessageDigest#getInstance(String)}.
+     *
+     * @return a MessageDigest owned by the caller
+     */
+    public static MessageDigest newSha1MessageDigest() {
+        try {
+            return (MessageDigest) SHA1_PROTOTYPE.clone();
+        } catch (CloneNotSupportedException e) {
+            return createSha1();
+        }
+    }
+
+    /**
+     * Compute the SHA-1 digest of the UTF-8 encoding of a string.
+     *
+     * @param value the string to hash
+     * @return the digest
+     */
+    public static DigestValue sha1(CharSequence value) {
+        return DigestValue.wrap(sha1State.get().digest(value));
+    }
+
+    /**
+     * Compute the SHA-1 digest of bytes.
+     *
+     * @param value the bytes to hash
+     * @return the digest
+     */
+    public static DigestValue sha1(byte[] value) {
+        MessageDigest md = sha1State.get().md;
+        md.reset();
+        return DigestValue.wrap(md.digest(value));
+    }
+
+    /**
+     * Compute the SHA-1 digest of the UTF-8 encoding of a string as lower case hex.
+     *
+     * @param value the string to hash
+     * @return the digest, always 40 characters
+     */
+    public static String sha1Hex(CharSequence value) {
+        Sha1State state = sha1State.get();
+        DigestValue.encodeHex(state.digest(value), state.hex, 0);
+        return new String(state.hex);
+    }
+
+    private static MessageDigest createSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Should never happen because there is a requirement for all JRE implementations to include SHA1
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Sha1State {
+        private final MessageDigest md = newSha1MessageDigest();
+        private final byte[] buf = new byte[256];
+        private final char[] hex = new char[40];
+
+        private byte[] digest(CharSequence value) {
+            md.reset();
+            int pos = 0;
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                // Make sure there is room for the longest encoding of a code point
+                if (pos > buf.length - 4) {
+                    md.update(buf, 0, pos);
+                    pos = 0;
+                }
+
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, value.charAt(++i));
+                        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                    } else {
+                        // Unpaired surrogates are replaced like String.getBytes(UTF_8) does
+                        buf[pos++] = (byte) '?';
+                    }
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            md.update(buf, 0, pos);
+            return md.digest();
+        }
+    }
+}
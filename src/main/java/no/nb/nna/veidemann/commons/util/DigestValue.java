@@ -0,0 +1,196 @@
+package no.nb.nna.veidemann.commons.util;
+
+import java.util.Arrays;
+
+/**
+ * The raw result of a digest computation, with encoders for the string forms used in WARC and CDX records.
+ * <p>
+ * The static encoders are table driven and write into caller supplied buffers, so that hot paths can reuse the
+ * buffers instead of allocating for each record.
+ */
+public final class DigestValue {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+    private final byte[] value;
+
+    private DigestValue(byte[] value) {
+        this.value = value;
+    }
+
+    /**
+     * Create a digest value from the raw digest bytes.
+     *
+     * @param value the digest bytes. The array is copied
+     * @return the digest value
+     */
+    public static DigestValue of(byte[] value) {
+        return new DigestValue(value.clone());
+    }
+
+    /**
+     * Create a digest value which takes ownership of the submitted array.
+     */
+    static DigestValue wrap(byte[] value) {
+        return new DigestValue(value);
+    }
+
+    /**
+     * @return a copy of the digest bytes
+     */
+    public byte[] getBytes() {
+        return value.clone();
+    }
+
+    /**
+     * @return the number of digest bytes
+     */
+    public int length() {
+        return value.length;
+    }
+
+    /**
+     * @return the digest as a lower case hex string with two characters for each byte
+     */
+    public String toHex() {
+        char[] buf = new char[hexLength(value.length)];
+        encodeHex(value, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * @return the digest as an upper case Base32 string as defined in RFC 4648
+     */
+    public String toBase32() {
+        char[] buf = new char[base32Length(value.length)];
+        encodeBase32(value, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Append the hex encoded digest to a StringBuilder.
+     *
+     * @param sb the StringBuilder to append to
+     * @return the submitted StringBuilder
+     */
+    public StringBuilder appendHex(StringBuilder sb) {
+        for (byte b : value) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return sb;
+    }
+
+    /**
+     * Write the hex encoded digest into a buffer.
+     *
+     * @param dst    the buffer
+     * @param offset the position in the buffer to start writing
+     * @return the number of characters written
+     */
+    public int writeHex(char[] dst, int offset) {
+        return encodeHex(value, dst, offset);
+    }
+
+    /**
+     * Write the Base32 encoded digest into a buffer.
+     *
+     * @param dst    the buffer
+     * @param offset the position in the buffer to start writing
+     * @return the number of characters written
+     */
+    public int writeBase32(char[] dst, int offset) {
+        return encodeBase32(value, dst, offset);
+    }
+
+    /**
+     * @param byteCount number of bytes to encode
+     * @return the number of characters needed for hex encoding
+     */
+    public static int hexLength(int byteCount) {
+        return byteCount * 2;
+    }
+
+    /**
+     * @param byteCount number of bytes to encode
+     * @return the number of characters, including padding, needed for Base32 encoding
+     */
+    public static int base32Length(int byteCount) {
+        return ((byteCount + 4) / 5) * 8;
+    }
+
+    /**
+     * Hex encode bytes into a buffer.
+     *
+     * @param src    the bytes to encode
+     * @param dst    the buffer, which must have room for {@link #hexLength(int)} characters from offset
+     * @param offset the position in the buffer to start writing
+     * @return the number of characters written
+     */
+    public static int encodeHex(byte[] src, char[] dst, int offset) {
+        int j = offset;
+        for (byte b : src) {
+            dst[j++] = HEX[(b >> 4) & 0xf];
+            dst[j++] = HEX[b & 0xf];
+        }
+        return j - offset;
+    }
+
+    /**
+     * Base32 encode bytes into a buffer, padding with '=' as defined in RFC 4648.
+     *
+     * @param src    the bytes to encode
+     * @param dst    the buffer, which must have room for {@link #base32Length(int)} characters from offset
+     * @param offset the position in the buffer to start writing
+     * @return the number of characters written
+     */
+    public static int encodeBase32(byte[] src, char[] dst, int offset) {
+        int j = offset;
+        int i = 0;
+
+        // Every five bytes become eight characters
+        for (; i + 5 <= src.length; i += 5) {
+            long block = ((src[i] & 0xffL) << 32)
+                    | ((src[i + 1] & 0xffL) << 24)
+                    | ((src[i + 2] & 0xffL) << 16)
+                    | ((src[i + 3] & 0xffL) << 8)
+                    | (src[i + 4] & 0xffL);
+            for (int shift = 35; shift >= 0; shift -= 5) {
+                dst[j++] = BASE32[(int) (block >>> shift) & 0x1f];
+            }
+        }
+
+        int remaining = src.length - i;
+        if (remaining > 0) {
+            long block = 0L;
+            for (int k = 0; k < remaining; k++) {
+                block |= (src[i + k] & 0xffL) << (32 - 8 * k);
+            }
+            int chars = (remaining * 8 + 4) / 5;
+            for (int k = 0; k < 8; k++) {
+                dst[j++] = k < chars ? BASE32[(int) (block >>> (35 - 5 * k)) & 0x1f] : '=';
+            }
+        }
+        return j - offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return Arrays.equals(value, ((DigestValue) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,308 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.Label;
+import no.nb.nna.veidemann.api.config.v1.ListRequest;
+import no.nb.nna.veidemann.commons.db.ChangeFeed;
+import no.nb.nna.veidemann.commons.db.ConfigAdapter;
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.util.LabelSelector.Term;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory inverted index from labels to config objects.
+ * <p>
+ * Each config object is given an int id and every label has a posting list of the ids of the objects carrying it,
+ * stored as a {@link CompressedIntSet}. A {@link LabelSelector} is resolved by intersecting the posting lists of the
+ * positive terms, where a {@code key:*} term is the union of all values for the key, and then removing the posting
+ * lists of the negated terms.
+ * <p>
+ * The index can be kept current by following a change feed. Change feeds only deliver new versions of objects, so
+ * deleted objects must be removed with {@link #remove(String)}.
+ */
+public class InvertedLabelIndex implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(InvertedLabelIndex.class);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    // Indexed by doc id. Removed objects leave a null
+    private final List<ConfigObject> docs = new ArrayList<>();
+    private final Map<String, Map<String, CompressedIntSet>> postings = new HashMap<>();
+    private CompressedIntSet liveDocs = CompressedIntSet.EMPTY;
+    private volatile ChangeFeed<ConfigObject> changeFeed;
+
+    /**
+     * Create an index with the objects returned by a list request.
+     *
+     * @param configAdapter the config adapter to list from
+     * @param request       the list request
+     * @return the index
+     * @throws DbException if listing fails
+     */
+    public static InvertedLabelIndex load(ConfigAdapter configAdapter, ListRequest request) throws DbException {
+        InvertedLabelIndex index = new InvertedLabelIndex();
+        try (ChangeFeed<ConfigObject> objects = configAdapter.listConfigObjects(request)) {
+            index.addAll(objects.stream().collect(Collectors.toList()));
+        }
+        return index;
+    }
+
+    /**
+     * Update the index with every object from a change feed until the index is closed.
+     *
+     * @param changeFeed the change feed. It is closed when the index is closed
+     * @param executor   the executor running the loop reading the change feed
+     */
+    public void follow(ChangeFeed<ConfigObject> changeFeed, Executor executor) {
+        if (this.changeFeed != null) {
+            throw new IllegalStateException("Index is already following a change feed");
+        }
+        this.changeFeed = changeFeed;
+        executor.execute(() -> {
+            try {
+                changeFeed.stream().forEach(this::update);
+            } catch (Exception e) {
+                if (this.changeFeed != null) {
+                    LOG.warn("Change feed for label index failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add objects to the index. This is cheaper than updating the objects one by one.
+     *
+     * @param objects the objects to add or replace
+     */
+    public void addAll(Collection<ConfigObject> objects) {
+        lock.writeLock().lock();
+        try {
+            // Keep the last version of objects occurring more than once
+            Map<String, ConfigObject> distinct = new LinkedHashMap<>();
+            for (ConfigObject object : objects) {
+                distinct.put(object.getId(), object);
+            }
+
+            Map<String, Map<String, CompressedIntSet.Builder>> newPostings = new HashMap<>();
+            CompressedIntSet.Builder newDocs = new CompressedIntSet.Builder();
+            for (ConfigObject object : distinct.values()) {
+                if (docIds.containsKey(object.getId())) {
+                    update(object);
+                    continue;
+                }
+                // New doc ids are increasing, so they can be appended to builders
+                int docId = docs.size();
+                docIds.put(object.getId(), docId);
+                docs.add(object);
+                newDocs.add(docId);
+                for (Label label : object.getMeta().getLabelList()) {
+                    newPostings.computeIfAbsent(label.getKey(), k -> new HashMap<>())
+                            .computeIfAbsent(label.getValue(), v -> new CompressedIntSet.Builder())
+                            .add(docId);
+                }
+            }
+            liveDocs = liveDocs.or(newDocs.build());
+            newPostings.forEach((key, values) -> values.forEach((value, builder) -> postings
+                    .computeIfAbsent(key, k -> new HashMap<>())
+                    .merge(value, builder.build(), CompressedIntSet::or)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace an object in the index.
+     *
+     * @param object the object
+     */
+    public void update(ConfigObject object) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.get(object.getId());
+            if (docId == null) {
+                docId = docs.size();
+                docIds.put(object.getId(), docId);
+                docs.add(object);
+                liveDocs = liveDocs.with(docId);
+            } else {
+                removePostings(docId, docs.get(docId));
+                docs.set(docId, object);
+            }
+            for (Label label : object.getMeta().getLabelList()) {
+                postings.computeIfAbsent(label.getKey(), k -> new HashMap<>())
+                        .merge(label.getValue(), CompressedIntSet.of(docId), CompressedIntSet::or);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an object from the index.
+     *
+     * @param id the id of the object
+     * @return true if the object was in the index
+     */
+    public boolean remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.remove(id);
+            if (docId == null) {
+                return false;
+            }
+            removePostings(docId, docs.get(docId));
+            docs.set(docId, null);
+            liveDocs = liveDocs.without(docId);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removePostings(int docId, ConfigObject object) {
+        for (Label label : object.getMeta().getLabelList()) {
+            Map<String, CompressedIntSet> values = postings.get(label.getKey());
+            if (values != null) {
+                CompressedIntSet posting = values.computeIfPresent(label.getValue(), (v, p) -> {
+                    CompressedIntSet result = p.without(docId);
+                    return result.isEmpty() ? null : result;
+                });
+                if (posting == null && values.isEmpty()) {
+                    postings.remove(label.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get an object by id.
+     *
+     * @param id the id of the object
+     * @return the object, or an empty Optional if it is not in the index
+     */
+    public Optional<ConfigObject> get(String id) {
+        lock.readLock().lock();
+        try {
+            Integer docId = docIds.get(id);
+            return docId == null ? Optional.empty() : Optional.of(docs.get(docId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the objects matching a selector.
+     *
+     * @param selector the selector
+     * @return the matching objects in the order they were added to the index
+     */
+    public List<ConfigObject> select(LabelSelector selector) {
+        lock.readLock().lock();
+        try {
+            CompressedIntSet matches = resolve(selector);
+            List<ConfigObject> result = new ArrayList<>(matches.size());
+            PrimitiveIterator.OfInt it = matches.iterator();
+            while (it.hasNext()) {
+                result.add(docs.get(it.nextInt()));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the objects matching a selector.
+     *
+     * @param selector the selector
+     * @return the number of matching objects
+     */
+    public int count(LabelSelector selector) {
+        lock.readLock().lock();
+        try {
+            return resolve(selector).size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private CompressedIntSet resolve(LabelSelector selector) {
+        List<CompressedIntSet> include = new ArrayList<>();
+        List<CompressedIntSet> exclude = new ArrayList<>();
+        for (Term term : selector.getTerms()) {
+            (term.negated ? exclude : include).add(posting(term));
+        }
+
+        CompressedIntSet result;
+        if (include.isEmpty()) {
+            result = liveDocs;
+        } else {
+            // Start with the smallest posting list to keep intermediate results small
+            CompressedIntSet[] sorted = include.toArray(new CompressedIntSet[0]);
+            Arrays.sort(sorted, Comparator.comparingInt(CompressedIntSet::size));
+            result = sorted[0];
+            for (int i = 1; i < sorted.length && !result.isEmpty(); i++) {
+                result = result.and(sorted[i]);
+            }
+        }
+        for (CompressedIntSet posting : exclude) {
+            result = result.andNot(posting);
+        }
+        return result;
+    }
+
+    private CompressedIntSet posting(Term term) {
+        Map<String, CompressedIntSet> values = postings.get(term.key);
+        if (values == null) {
+            return CompressedIntSet.EMPTY;
+        }
+        if (term.value != null) {
+            return values.getOrDefault(term.value, CompressedIntSet.EMPTY);
+        }
+        CompressedIntSet union = CompressedIntSet.EMPTY;
+        for (CompressedIntSet posting : values.values()) {
+            union = union.or(posting);
+        }
+        return union;
+    }
+
+    /**
+     * @return the number of objects in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stop following the change feed.
+     */
+    @Override
+    public void close() {
+        ChangeFeed<ConfigObject> feed = changeFeed;
+        changeFeed = null;
+        if (feed != null) {
+            feed.close();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.commons.util.Pool.Lease;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A set of {@link Pool}s, one for each key, with a limit for each key and a limit for all keys together.
+ * <p>
+ * A lease first claims a slot in the pool for its key. Only if an object must be created for the slot, a permit is
+ * taken from a fair semaphore shared by all keys, which counts the live objects, whether leased or idle. A request
+ * waiting for a busy key therefore holds nothing which other keys need, and waiting for the shared permit is first
+ * come, first served, regardless of key. When the total limit is reached, an idle object of another key is finalized
+ * to make room. If there are no idle objects, the request waits for an object to be finalized.
+ * <p>
+ * Pools for keys which have not been used for the key idle timeout are closed and their objects finalized. The
+ * cleanup runs on the keyed pool's executor.
+ *
+ * @param <K> the key type
+ * @param <T> the type of the pooled objects
+ */
+public class KeyedPool<K, T> implements AutoCloseable {
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    // How often a request waiting for the total limit looks for idle objects which can be evicted
+    private static final long EVICTION_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ConcurrentHashMap<K, KeyEntry> pools = new ConcurrentHashMap<>();
+    private final Function<K, T> objectFactory;
+    private final Predicate<T> verifier;
+    private final Consumer<T> objectFinalizer;
+    private final int maxPerKey;
+    private final Semaphore liveObjects;
+    // The deadline of the lease being prepared on this thread, or null to wait indefinitely
+    private final ThreadLocal<Long> leaseDeadline = new ThreadLocal<>();
+    private final long keyIdleTimeoutNanos;
+    private final Executor executor;
+    private final AtomicBoolean cleanupRunning = new AtomicBoolean(false);
+    private final ScheduledFuture<?> cleanupTask;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private KeyedPool(Builder<K, T> builder) {
+        this.objectFactory = builder.objectFactory;
+        this.verifier = builder.verifier;
+        this.objectFinalizer = builder.objectFinalizer;
+        this.maxPerKey = builder.maxPerKey;
+        this.liveObjects = new Semaphore(builder.maxTotal, true);
+        this.executor = builder.executor == null ? Pool.workerService : builder.executor;
+        if (builder.keyIdleTimeout != null) {
+            this.keyIdleTimeoutNanos = builder.keyIdleTimeout.toNanos();
+            long interval = Math.max(1L, builder.keyIdleTimeout.toMillis() / 2);
+            cleanupTask = Pool.maintenanceService.scheduleWithFixedDelay(this::triggerCleanup, interval, interval,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.keyIdleTimeoutNanos = 0L;
+            cleanupTask = null;
+        }
+    }
+
+    /**
+     * Create a builder for a keyed pool.
+     *
+     * @param objectFactory the function creating new objects for a key
+     * @param <K>           the key type
+     * @param <T>           the type of the pooled objects
+     * @return the builder
+     */
+    public static <K, T> Builder<K, T> newBuilder(Function<K, T> objectFactory) {
+        return new Builder<>(objectFactory);
+    }
+
+    public Lease<T> lease(K key) throws InterruptedException {
+        try {
+            return lease(key, 0, null);
+        } catch (TimeoutException e) {
+            // Should never happen
+            throw new RuntimeException("Should never happen. This is a bug", e);
+        }
+    }
+
+    /**
+     * Lease an object for a key.
+     *
+     * @param key  the key
+     * @param time the maximum time to wait for an object
+     * @param unit the time unit of the time argument. If null, wait indefinitely
+     * @return the lease
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException     if no object became available in time
+     */
+    public Lease<T> lease(K key, long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (closed.get()) {
+            throw new IllegalStateException("Trying to lease object from closed pool");
+        }
+
+        long deadline = unit == null ? 0L : System.nanoTime() + unit.toNanos(time);
+        while (true) {
+            if (closed.get()) {
+                throw new IllegalStateException("Trying to lease object from closed pool");
+            }
+
+            KeyEntry entry = pools.computeIfAbsent(key, KeyEntry::new);
+            if (entry.users.getAndIncrement() < 0) {
+                // The pool for this key was closed while we looked it up
+                pools.remove(key, entry);
+                continue;
+            }
+
+            // The lease is prepared on this thread, so the object factory can find the deadline here
+            leaseDeadline.set(unit == null ? null : deadline);
+            boolean success = false;
+            try {
+                Lease<T> lease;
+                if (unit == null) {
+                    lease = entry.pool.lease();
+                } else {
+                    lease = entry.pool.lease(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                entry.leases.add(lease);
+                success = true;
+                return lease;
+            } catch (PermitNotAcquiredException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    throw (InterruptedException) e.getCause();
+                }
+                throw (TimeoutException) e.getCause();
+            } finally {
+                leaseDeadline.remove();
+                if (!success) {
+                    entry.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an object for a key within the total limit. Called by the pool for the key, which has already claimed a
+     * slot for the object.
+     */
+    private T createObject(K key, KeyEntry requester) {
+        acquireObjectPermit(requester);
+        boolean created = false;
+        try {
+            T object = objectFactory.apply(key);
+            created = true;
+            return object;
+        } finally {
+            if (!created) {
+                liveObjects.release();
+            }
+        }
+    }
+
+    private void finalizeObject(T object) {
+        try {
+            if (objectFinalizer != null) {
+                objectFinalizer.accept(object);
+            }
+        } finally {
+            liveObjects.release();
+        }
+    }
+
+    /**
+     * Take a permit for a new object. If the total limit is reached, idle objects are evicted, starting with other
+     * keys than the requester, until a permit is free. If there are no idle objects, wait for a permit until the
+     * deadline of the lease.
+     *
+     * @throws PermitNotAcquiredException if the deadline passed or the thread was interrupted
+     */
+    private void acquireObjectPermit(KeyEntry requester) {
+        Long deadline = leaseDeadline.get();
+        try {
+            // A zero timeout respects the fairness of the semaphore, which tryAcquire() does not
+            while (!liveObjects.tryAcquire(0L, TimeUnit.NANOSECONDS)) {
+                if (evictIdleObject(requester)) {
+                    continue;
+                }
+                long wait = EVICTION_POLL_NANOS;
+                if (deadline != null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new PermitNotAcquiredException(new TimeoutException());
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                // Objects becoming idle are not signalled, so the wait is cut short to look for them again
+                if (liveObjects.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new PermitNotAcquiredException(e);
+        }
+    }
+
+    private boolean evictIdleObject(KeyEntry requester) {
+        for (KeyEntry entry : pools.values()) {
+            if (entry != requester && entry.pool.evictIdleObject()) {
+                return true;
+            }
+        }
+        return requester.pool.evictIdleObject();
+    }
+
+    /**
+     * @return the number of keys which currently have a pool
+     */
+    public int getKeyCount() {
+        return pools.size();
+    }
+
+    /**
+     * Get a snapshot of the statistics for the pool of a key.
+     *
+     * @param key the key
+     * @return the statistics, or null if there is no pool for the key
+     */
+    public PoolStats getStats(K key) {
+        KeyEntry entry = pools.get(key);
+        return entry == null ? null : entry.pool.getStats();
+    }
+
+    /**
+     * Hand a cleanup run to the executor, unless the previous run is still going.
+     */
+    private void triggerCleanup() {
+        if (!cleanupRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    closeIdleKeys();
+                } finally {
+                    cleanupRunning.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Try again on the next run
+            cleanupRunning.set(false);
+        }
+    }
+
+    /**
+     * Close the pools of keys which have not been used for the key idle timeout.
+     */
+    void closeIdleKeys() {
+        long now = System.nanoTime();
+        pools.forEach((key, entry) -> {
+            if (now - entry.lastUsedNanos > keyIdleTimeoutNanos && entry.users.compareAndSet(0, RETIRED)) {
+                pools.remove(key, entry);
+                entry.close();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (closed.compareAndSet(false, true)) {
+            if (cleanupTask != null) {
+                cleanupTask.cancel(false);
+            }
+            for (KeyEntry entry : pools.values()) {
+                entry.pool.close();
+            }
+            pools.clear();
+        }
+    }
+
+    private class KeyEntry {
+        private final Pool<T> pool;
+        private final Set<Lease<T>> leases = ConcurrentHashMap.newKeySet();
+        // Leases in use or being acquired. Set to RETIRED when the pool for the key is closed
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private KeyEntry(K key) {
+            pool = Pool.newBuilder(() -> createObject(key, this))
+                    .withMaxSize(maxPerKey)
+                    .withVerifier(verifier)
+                    .withObjectFinalizer(KeyedPool.this::finalizeObject)
+                    .withAfterReturnFunc(this::returned)
+                    .withExecutor(executor)
+                    .build();
+        }
+
+        private void returned(Lease<T> lease) {
+            // A lease closed twice is only counted once
+            if (leases.remove(lease)) {
+                release();
+            }
+        }
+
+        private void release() {
+            lastUsedNanos = System.nanoTime();
+            users.decrementAndGet();
+        }
+
+        private void close() {
+            try {
+                pool.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Carries the reason a permit for a new object could not be taken through the object factory of the pool for a
+     * key.
+     */
+    private static class PermitNotAcquiredException extends RuntimeException {
+        private PermitNotAcquiredException(Exception cause) {
+            super(null, cause, false, false);
+        }
+    }
+
+    /**
+     * Builder for {@link KeyedPool}.
+     *
+     * @param <K> the key type
+     * @param <T> the type of the pooled objects
+     */
+    public static class Builder<K, T> {
+        private final Function<K, T> objectFactory;
+        private Predicate<T> verifier;
+        private Consumer<T> objectFinalizer;
+        private int maxPerKey = 1;
+        private int maxTotal = Integer.MAX_VALUE;
+        private Duration keyIdleTimeout;
+        private Executor executor;
+
+        private Builder(Function<K, T> objectFactory) {
+            this.objectFactory = Objects.requireNonNull(objectFactory, "objectFactory");
+        }
+
+        /**
+         * @param verifier predicate run before an existing object is leased. Objects failing the test are finalized
+         *                 and replaced
+         */
+        public Builder<K, T> withVerifier(Predicate<T> verifier) {
+            this.verifier = verifier;
+            return this;
+        }
+
+        /**
+         * @param objectFinalizer function run when an object is removed from the pool
+         */
+        public Builder<K, T> withObjectFinalizer(Consumer<T> objectFinalizer) {
+            this.objectFinalizer = objectFinalizer;
+            return this;
+        }
+
+        /**
+         * @param maxPerKey the maximum number of objects for each key
+         */
+        public Builder<K, T> withMaxPerKey(int maxPerKey) {
+            if (maxPerKey < 1) {
+                throw new IllegalArgumentException("maxPerKey must be at least 1");
+            }
+            this.maxPerKey = maxPerKey;
+            return this;
+        }
+
+        /**
+         * @param maxTotal the maximum number of live objects for all keys together, whether leased or idle. Idle
+         *                 objects are evicted when other keys need room
+         */
+        public Builder<K, T> withMaxTotal(int maxTotal) {
+            if (maxTotal < 1) {
+                throw new IllegalArgumentException("maxTotal must be at least 1");
+            }
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        /**
+         * @param keyIdleTimeout the time a key might stay unused before its pool is closed
+         */
+        public Builder<K, T> withKeyIdleTimeout(Duration keyIdleTimeout) {
+            this.keyIdleTimeout = keyIdleTimeout;
+            return this;
+        }
+
+        /**
+         * @param executor the executor closing idle keys and running the background work of the pools for each key.
+         *                 Defaults to a shared pool of daemon threads, which grows as needed
+         */
+        public Builder<K, T> withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public KeyedPool<K, T> build() {
+            return new KeyedPool<>(this);
+        }
+    }
+}
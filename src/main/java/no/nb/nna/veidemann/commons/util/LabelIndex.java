@@ -0,0 +1,102 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.Label;
+import no.nb.nna.veidemann.api.config.v1.Meta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A hashed view of the labels of a {@link Meta} object for repeated lookups.
+ * <p>
+ * Building the index costs a pass over the labels, so it pays off when the same object is queried several times.
+ * For testing many objects once each, use a {@link LabelSelector}.
+ */
+public class LabelIndex {
+    private final Map<String, List<String>> valuesByKey;
+
+    private LabelIndex(Map<String, List<String>> valuesByKey) {
+        this.valuesByKey = valuesByKey;
+    }
+
+    /**
+     * Create an index of the labels of a meta object.
+     *
+     * @param meta the meta object
+     * @return the index
+     */
+    public static LabelIndex of(Meta meta) {
+        List<Label> labels = meta.getLabelList();
+        Map<String, List<String>> valuesByKey = new HashMap<>();
+        for (int i = 0; i < labels.size(); i++) {
+            Label label = labels.get(i);
+            valuesByKey.computeIfAbsent(label.getKey(), k -> new ArrayList<>(1)).add(label.getValue());
+        }
+        for (Map.Entry<String, List<String>> e : valuesByKey.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return new LabelIndex(valuesByKey);
+    }
+
+    /**
+     * @param key the label key
+     * @return true if there is at least one label with the key
+     */
+    public boolean hasKey(String key) {
+        return valuesByKey.containsKey(key);
+    }
+
+    /**
+     * @param key   the label key
+     * @param value the label value
+     * @return true if there is a label with the key and value
+     */
+    public boolean hasLabel(String key, String value) {
+        List<String> values = valuesByKey.get(key);
+        return values != null && values.contains(value);
+    }
+
+    /**
+     * @param labels the labels to look for
+     * @return true if all the labels are found. False if no labels are submitted, like {@link ApiTools#hasLabel}
+     */
+    public boolean hasLabel(Label... labels) {
+        if (labels.length == 0) {
+            return false;
+        }
+        for (Label label : labels) {
+            if (!hasLabel(label.getKey(), label.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key the label key
+     * @return the value of the first label with the key, or an empty Optional if there is no label with the key
+     */
+    public Optional<String> getFirstValue(String key) {
+        List<String> values = valuesByKey.get(key);
+        return values == null ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    /**
+     * @param key the label key
+     * @return the values of all labels with the key in the order they appear in the meta object
+     */
+    public List<String> getValues(String key) {
+        return valuesByKey.getOrDefault(key, Collections.emptyList());
+    }
+
+    /**
+     * @return the number of distinct label keys
+     */
+    public int getKeyCount() {
+        return valuesByKey.size();
+    }
+}
@@ -0,0 +1,158 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.Label;
+import no.nb.nna.veidemann.api.config.v1.Meta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A compiled label selector.
+ * <p>
+ * A selector is a list of terms which all must match:
+ * <ul>
+ * <li>{@code key:value} matches objects with a label with the key and value</li>
+ * <li>{@code key:*} matches objects with a label with the key, regardless of value</li>
+ * <li>{@code !key:value} and {@code !key:*} match objects without such a label</li>
+ * </ul>
+ * The selector is immutable and thread safe. Testing an object does not allocate.
+ */
+public class LabelSelector implements Predicate<ConfigObject> {
+    static final String WILDCARD = "*";
+
+    private final Term[] terms;
+
+    private LabelSelector(Term[] terms) {
+        this.terms = terms;
+    }
+
+    /**
+     * Compile a selector from an expression with terms separated by comma.
+     *
+     * @param expression the expression, e.g. {@code "type:seed,!state:*"}
+     * @return the compiled selector
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public static LabelSelector compile(String expression) {
+        List<String> terms = new ArrayList<>();
+        for (String term : expression.split(",")) {
+            if (!term.trim().isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return compile(terms);
+    }
+
+    /**
+     * Compile a selector from a list of terms, e.g. the label selectors of a list request.
+     *
+     * @param terms the terms
+     * @return the compiled selector. An empty list matches everything
+     * @throws IllegalArgumentException if a term is malformed
+     */
+    public static LabelSelector compile(List<String> terms) {
+        Term[] compiled = new Term[terms.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = Term.parse(terms.get(i));
+        }
+        return new LabelSelector(compiled);
+    }
+
+    @Override
+    public boolean test(ConfigObject configObject) {
+        return matches(configObject.getMeta());
+    }
+
+    /**
+     * @param meta the meta object to test
+     * @return true if the labels of the meta object matches the selector
+     */
+    public boolean matches(Meta meta) {
+        List<Label> labels = meta.getLabelList();
+        for (Term term : terms) {
+            if (term.matches(labels) == term.negated) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index the label index to test
+     * @return true if the labels of the index matches the selector
+     */
+    public boolean matches(LabelIndex index) {
+        for (Term term : terms) {
+            boolean found = term.value == null ? index.hasKey(term.key) : index.hasLabel(term.key, term.value);
+            if (found == term.negated) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    List<Term> getTerms() {
+        return Arrays.asList(terms);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Term term : terms) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(term);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One term of a selector.
+     */
+    static class Term {
+        final String key;
+        // null for wildcard
+        final String value;
+        final boolean negated;
+
+        private Term(String key, String value, boolean negated) {
+            this.key = key;
+            this.value = value;
+            this.negated = negated;
+        }
+
+        static Term parse(String term) {
+            String t = term.trim();
+            boolean negated = t.startsWith("!");
+            if (negated) {
+                t = t.substring(1).trim();
+            }
+            int sep = t.indexOf(':');
+            if (sep <= 0) {
+                throw new IllegalArgumentException("Label selector term must be on the form key:value, was: " + term);
+            }
+            String key = t.substring(0, sep);
+            String value = t.substring(sep + 1);
+            return new Term(key, WILDCARD.equals(value) ? null : value, negated);
+        }
+
+        private boolean matches(List<Label> labels) {
+            for (int i = 0; i < labels.size(); i++) {
+                Label label = labels.get(i);
+                if (key.equals(label.getKey()) && (value == null || value.equals(label.getValue()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return (negated ? "!" : "") + key + ':' + (value == null ? WILDCARD : value);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Computes several digests over the same content in one pass.
+ * <p>
+ * Input is split into windows small enough to stay in the CPU cache, and each window is fed to all the digests
+ * before moving on to the next. Every algorithm still reads every byte, but only the first one pays for fetching it
+ * from memory.
+ */
+public class MultiDigest {
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    private final MessageDigest[] digests;
+    private final String[] prefixes;
+    private final DigestValue[] digestValues;
+    private boolean dirty = true;
+
+    /**
+     * Create a digest for the submitted algorithms.
+     *
+     * @param algorithms the names of the algorithms, e.g. "SHA-1" and "SHA-256"
+     * @throws IllegalArgumentException if an algorithm is not supported or there are no algorithms
+     */
+    public MultiDigest(String... algorithms) {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm is required");
+        }
+        digests = new MessageDigest[algorithms.length];
+        prefixes = new String[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            try {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithms[i], e);
+            }
+            prefixes[i] = prefix(algorithms[i]);
+            for (int j = 0; j < i; j++) {
+                if (prefixes[j].equals(prefixes[i])) {
+                    throw new IllegalArgumentException("Duplicate digest algorithm: " + algorithms[i]);
+                }
+            }
+        }
+        digestValues = new DigestValue[algorithms.length];
+    }
+
+    private MultiDigest(MessageDigest[] digests, String[] prefixes) {
+        this.digests = digests;
+        this.prefixes = prefixes;
+        this.digestValues = new DigestValue[digests.length];
+    }
+
+    public MultiDigest update(ByteString data) {
+        dirty = true;
+        for (ByteBuffer b : data.asReadOnlyByteBufferList()) {
+            updateAll(b);
+        }
+        return this;
+    }
+
+    public MultiDigest update(ByteBuffer data) {
+        dirty = true;
+        updateAll(data);
+        return this;
+    }
+
+    public MultiDigest update(byte... data) {
+        dirty = true;
+        for (int offset = 0; offset < data.length; offset += WINDOW_SIZE) {
+            int length = Math.min(WINDOW_SIZE, data.length - offset);
+            for (MessageDigest digest : digests) {
+                digest.update(data, offset, length);
+            }
+        }
+        return this;
+    }
+
+    private void updateAll(ByteBuffer data) {
+        int limit = data.limit();
+        while (data.hasRemaining()) {
+            int position = data.position();
+            int windowEnd = position + Math.min(WINDOW_SIZE, limit - position);
+            data.limit(windowEnd);
+            for (MessageDigest digest : digests) {
+                data.position(position);
+                digest.update(data);
+            }
+            data.limit(limit);
+        }
+    }
+
+    /**
+     * Get the digest for an algorithm prefixed with the algorithm name, e.g. "sha256:...".
+     *
+     * @param algorithm the name of the algorithm
+     * @return the prefixed hex encoded digest
+     */
+    public String getPrefixedDigestString(String algorithm) {
+        int i = indexOf(algorithm);
+        return prefixes[i] + ':' + getDigestValue(i).toHex();
+    }
+
+    /**
+     * Get the digest for an algorithm as a hex string.
+     *
+     * @param algorithm the name of the algorithm
+     * @return the hex encoded digest
+     */
+    public String getRawDigestString(String algorithm) {
+        return getDigestValue(algorithm).toHex();
+    }
+
+    /**
+     * Get the digest for an algorithm of the content so far. Updating this object afterwards does not affect the
+     * returned value.
+     *
+     * @param algorithm the name of the algorithm
+     * @return the digest
+     */
+    public DigestValue getDigestValue(String algorithm) {
+        return getDigestValue(indexOf(algorithm));
+    }
+
+    private DigestValue getDigestValue(int i) {
+        if (dirty) {
+            for (int j = 0; j < digestValues.length; j++) {
+                digestValues[j] = null;
+            }
+            dirty = false;
+        }
+        if (digestValues[i] == null) {
+            try {
+                digestValues[i] = DigestValue.wrap(((MessageDigest) digests[i].clone()).digest());
+            } catch (CloneNotSupportedException cnse) {
+                throw new RuntimeException("Couldn't make digest of partial content");
+            }
+        }
+        return digestValues[i];
+    }
+
+    private int indexOf(String algorithm) {
+        String prefix = prefix(algorithm);
+        for (int i = 0; i < prefixes.length; i++) {
+            if (prefixes[i].equals(prefix)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Algorithm not computed by this digest: " + algorithm);
+    }
+
+    private static String prefix(String algorithm) {
+        return algorithm.replace("-", "").toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < prefixes.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(prefixes[i]).append(':');
+            getDigestValue(i).appendHex(sb);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public MultiDigest clone() {
+        try {
+            MessageDigest[] copy = new MessageDigest[digests.length];
+            for (int i = 0; i < digests.length; i++) {
+                copy[i] = (MessageDigest) digests[i].clone();
+            }
+            return new MultiDigest(copy, prefixes);
+        } catch (CloneNotSupportedException cnse) {
+            throw new RuntimeException("Couldn't make digest of partial content");
+        }
+    }
+}
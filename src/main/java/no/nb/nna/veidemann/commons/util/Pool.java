@@ -1,29 +1,123 @@
 package no.nb.nna.veidemann.commons.util;
 
-import java.util.BitSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+/**
+ * A pool of lazily created objects.
+ * <p>
+ * Slots are claimed with a compare-and-set on an atomic slot state array. A semaphore counts the free slots so that
+ * a leasing thread is only parked when the pool is exhausted. Neither leasing nor returning an object takes a lock.
+ * <p>
+ * A pool built with an idle timeout or a max lifetime is elastic. It never holds more than max size objects, but a
+ * background reaper finalizes objects which have been idle for too long, keeping at least min idle objects alive.
+ * Evicted slots are refilled lazily on the next lease.
+ * <p>
+ * The maintenance task can also keep a warm target of objects created ahead of the first leases, and validate idle
+ * objects in the background. Objects validated or created by the maintenance task are leased without running the
+ * verifier on the leasing thread. A shared scheduler triggers the maintenance, but each run is executed by the pool's
+ * executor, so that a slow factory or finalizer in one pool doesn't hold up the maintenance of other pools.
+ * <p>
+ * Callers which must not block, like gRPC callbacks, can use {@link #leaseAsync()}. Pending asynchronous leases are
+ * kept in a FIFO queue and are handed a returned slot directly by {@link Lease#close()}. Objects which must be created
+ * or verified for an asynchronous lease are prepared by the pool's executor.
+ * <p>
+ * Which free slot a lease gets is decided by the pool's {@link LeaseStrategy}.
+ * <p>
+ * Lease wait times, preparation times and object churn are always recorded and can be read with {@link #getStats()}.
+ * <p>
+ * A pool with a max lease duration reports leases which are held for longer, optionally with the call site which
+ * leased the object, and can reclaim them by force. Use {@link #close(long, TimeUnit)} to bound the time spent
+ * waiting for leases when closing the pool.
+ *
+ * @param <T> the type of the pooled objects
+ */
 public class Pool<T> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Pool.class);
+
+    private static final int FREE = 0;
+    private static final int LEASED = 1;
+    private static final int RESERVED = 2;
+
+    // How long close(long, TimeUnit) waits for leases being prepared and maintenance to finish after the timeout
+    private static final long CLOSE_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    /**
+     * The default executor for maintenance and asynchronous lease preparation.
+     */
+    static final ExecutorService workerService = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "pool-worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Triggers maintenance runs. Tasks submitted here must only hand the real work to an executor.
+     */
+    static final ScheduledExecutorService maintenanceService = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pool-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final int size;
     private final Lease<T>[] pool;
-    private final BitSet leases;
+    private final AtomicIntegerArray slotState;
+    private final Semaphore available;
+    // Held by the one batch lease collecting permits
+    private final ReentrantLock batchLock = new ReentrantLock(true);
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final Supplier<T> objectFactory;
     private final Predicate<T> verifier;
     private final Consumer<T> objectFinalizer;
     private final Consumer<Lease<T>> beforeLeaseFunc;
     private final Consumer<Lease<T>> afterReturnFunc;
-
-    private final Lock lock = new ReentrantLock();
-    private final Condition notEmpty = lock.newCondition();
+    private final Queue<PendingLease<T>> asyncWaiters = new ConcurrentLinkedQueue<>();
+    private final PoolStats.Recorder stats = new PoolStats.Recorder();
+    private final LeaseStrategy leaseStrategy;
+    private final ThreadLocal<int[]> lastSlot = ThreadLocal.withInitial(() -> new int[]{-1});
+    private final int minIdle;
+    private final int warmTarget;
+    private final boolean backgroundValidation;
+    private final long maxLeaseDurationNanos;
+    private final int leakSiteSamplingRate;
+    private final Consumer<LeakReport<T>> leakHandler;
+    private final boolean reclaimLeakedLeases;
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+    private final Executor executor;
+    private final AtomicBoolean maintenanceRunning = new AtomicBoolean(false);
+    private final ScheduledFuture<?> maintenanceTask;
 
     public Pool(int size, Supplier<T> objectFactory, Predicate<T> verifier, Consumer<T> objectFinalizer) {
         this(size, objectFactory, verifier, objectFinalizer, null, null);
@@ -31,18 +125,61 @@ public class Pool<T> implements AutoCloseable {
 
     public Pool(int size, Supplier<T> objectFactory, Predicate<T> verifier, Consumer<T> objectFinalizer,
                 Consumer<Lease<T>> beforeLeaseFunc, Consumer<Lease<T>> afterReturnFunc) {
-        this.size = size;
-        this.objectFactory = objectFactory;
-        this.verifier = verifier;
-        this.objectFinalizer = objectFinalizer;
-        this.beforeLeaseFunc = beforeLeaseFunc;
-        this.afterReturnFunc = afterReturnFunc;
-        leases = new BitSet(size);
+        this(newBuilder(objectFactory)
+                .withMaxSize(size)
+                .withVerifier(verifier)
+                .withObjectFinalizer(objectFinalizer)
+                .withBeforeLeaseFunc(beforeLeaseFunc)
+                .withAfterReturnFunc(afterReturnFunc));
+    }
+
+    private Pool(Builder<T> builder) {
+        this.size = builder.maxSize;
+        this.objectFactory = builder.objectFactory;
+        this.verifier = builder.verifier;
+        this.objectFinalizer = builder.objectFinalizer;
+        this.beforeLeaseFunc = builder.beforeLeaseFunc;
+        this.afterReturnFunc = builder.afterReturnFunc;
+        this.leaseStrategy = builder.leaseStrategy;
+        this.minIdle = builder.minIdle;
+        this.warmTarget = builder.warmTarget;
+        this.backgroundValidation = builder.backgroundValidation && builder.verifier != null;
+        this.maxLeaseDurationNanos = builder.maxLeaseDuration == null ? 0L : builder.maxLeaseDuration.toNanos();
+        this.leakSiteSamplingRate = builder.leakSiteSamplingRate;
+        this.leakHandler = builder.leakHandler;
+        this.reclaimLeakedLeases = builder.reclaimLeakedLeases;
+        this.idleTimeoutNanos = builder.idleTimeout == null ? 0L : builder.idleTimeout.toNanos();
+        this.maxLifetimeNanos = builder.maxLifetime == null ? 0L : builder.maxLifetime.toNanos();
+        this.executor = builder.executor == null ? workerService : builder.executor;
+        slotState = new AtomicIntegerArray(size);
+        available = new Semaphore(size);
 
         pool = new Lease[size];
         for (int i = 0; i < pool.length; i++) {
             pool[i] = new Lease<>(this, i);
         }
+
+        if (idleTimeoutNanos > 0L || maxLifetimeNanos > 0L || backgroundValidation || warmTarget > 0
+                || maxLeaseDurationNanos > 0L) {
+            long interval = builder.maintenanceInterval.toMillis();
+            // Pre-warm the pool right away if there is a warm target
+            long initialDelay = warmTarget > 0 ? 0L : interval;
+            maintenanceTask = maintenanceService.scheduleWithFixedDelay(this::triggerMaintenance, initialDelay,
+                    interval, TimeUnit.MILLISECONDS);
+        } else {
+            maintenanceTask = null;
+        }
+    }
+
+    /**
+     * Create a builder for a pool.
+     *
+     * @param objectFactory the function creating new objects for the pool
+     * @param <T>           the type of the pooled objects
+     * @return the builder
+     */
+    public static <T> Builder<T> newBuilder(Supplier<T> objectFactory) {
+        return new Builder<>(objectFactory);
     }
 
     public Lease<T> lease() throws InterruptedException {
@@ -59,84 +196,882 @@ public class Pool<T> implements AutoCloseable {
             throw new IllegalStateException("Trying to lease object from closed pool");
         }
 
-        Lease<T> result = findAvailableLease(time, unit);
-        result.beforeLease(objectFactory, verifier, objectFinalizer);
-        if (beforeLeaseFunc != null) {
-            beforeLeaseFunc.accept(result);
+        long start = System.nanoTime();
+        Lease<T> result;
+        try {
+            result = findAvailableLease(time, unit);
+        } catch (TimeoutException e) {
+            stats.timedOut();
+            throw e;
+        }
+        try {
+            prepareLease(result, System.nanoTime() - start);
+        } catch (RuntimeException | Error e) {
+            releaseSlot(result.index);
+            throw e;
         }
         return result;
     }
 
-    private Lease<T> findAvailableLease(long time, TimeUnit unit) throws InterruptedException, TimeoutException {
-        lock.lock();
+    public Leases<T> leaseAll(int n) throws InterruptedException {
         try {
-            int nextAvailable = leases.nextClearBit(0);
-            while (nextAvailable >= size) {
+            return leaseAll(n, 0, null);
+        } catch (TimeoutException e) {
+            // Should never happen
+            throw new RuntimeException("Should never happen. This is a bug", e);
+        }
+    }
+
+    /**
+     * Lease several objects at once. Either all objects are leased or none.
+     * <p>
+     * A batch which can't get all its slots right away collects them one at a time, queueing like a single lease, so
+     * it is not starved by a steady stream of single leases. Slots collected by a waiting batch are held until it has
+     * all of them. Only one batch collects at a time, so two callers asking for several objects can't end up holding
+     * part of what each of them needs.
+     *
+     * @param n    the number of objects to lease
+     * @param time the maximum time to wait for the objects
+     * @param unit the time unit of the time argument. If null, wait indefinitely
+     * @return the leases, which are returned together when closed
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException     if the objects did not become available in time
+     */
+    public Leases<T> leaseAll(int n, long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (n < 1 || n > size) {
+            throw new IllegalArgumentException("Number of objects must be between 1 and pool size (" + size + ")");
+        }
+        if (closed.get()) {
+            throw new IllegalStateException("Trying to lease object from closed pool");
+        }
+
+        long start = System.nanoTime();
+        try {
+            acquirePermits(n, time, unit);
+        } catch (TimeoutException e) {
+            stats.timedOut();
+            throw e;
+        }
+
+        // All slots are claimed right away, only the preparation is sequential
+        long waitNanos = System.nanoTime() - start;
+        List<Lease<T>> result = new ArrayList<>(n);
+        int failedIndex = -1;
+        try {
+            for (int i = 0; i < n; i++) {
+                int index = claimSlot();
+                failedIndex = index;
+                prepareLease(pool[index], waitNanos);
+                failedIndex = -1;
+                result.add(pool[index]);
+            }
+        } catch (RuntimeException | Error e) {
+            for (Lease<T> l : result) {
+                l.close();
+            }
+            int unclaimed = n - result.size();
+            if (failedIndex != -1) {
+                releaseSlot(failedIndex);
+                unclaimed--;
+            }
+            releasePermits(unclaimed);
+            throw e;
+        }
+        return new Leases<>(result);
+    }
+
+    /**
+     * Take n permits from {@link #available}.
+     * <p>
+     * The semaphore lets single leases barge, so waiting for n permits at once could starve while single leases keep
+     * coming. Instead the permits are collected one at a time while holding the batch lock.
+     */
+    private void acquirePermits(int n, long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (available.tryAcquire(n)) {
+            return;
+        }
+
+        long deadline = unit == null ? 0L : System.nanoTime() + unit.toNanos(time);
+        if (unit == null) {
+            batchLock.lockInterruptibly();
+        } else if (!batchLock.tryLock(time, unit)) {
+            throw new TimeoutException();
+        }
+        int acquired = 0;
+        try {
+            while (acquired < n) {
                 if (unit == null) {
-                    notEmpty.await();
-                } else {
-                    if (!notEmpty.await(time, unit)) {
-                        throw new TimeoutException();
-                    }
+                    available.acquire();
+                } else if (!available.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw new TimeoutException();
                 }
-                nextAvailable = leases.nextClearBit(0);
+                acquired++;
             }
-            leases.set(nextAvailable);
-            return pool[nextAvailable];
         } finally {
-            lock.unlock();
+            batchLock.unlock();
+            if (acquired < n) {
+                releasePermits(acquired);
+            }
+        }
+    }
+
+    private void releasePermits(int permits) {
+        if (permits > 0) {
+            available.release(permits);
+            if (!asyncWaiters.isEmpty()) {
+                dispatchAsyncWaiters();
+            }
+        }
+    }
+
+    /**
+     * Lease an object without blocking the calling thread.
+     * <p>
+     * The returned future is completed when an object is available. If the pool is exhausted, the request is queued
+     * and completed by the thread returning the next object. Dependent actions added with the non-async methods of
+     * {@link CompletableFuture} might therefore run on that thread.
+     * <p>
+     * Neither the calling thread nor the returning thread runs the object factory, the verifier or the before lease
+     * function. If any of them is needed, the lease is prepared and the future completed by the pool's executor.
+     *
+     * @return a future completed with the lease
+     */
+    public CompletableFuture<Lease<T>> leaseAsync() {
+        return leaseAsync(0, null);
+    }
+
+    /**
+     * Lease an object without blocking the calling thread.
+     *
+     * @param time the maximum time to wait for an object
+     * @param unit the time unit of the time argument. If null, wait indefinitely
+     * @return a future completed with the lease, or completed exceptionally with a {@link TimeoutException} if no
+     * object became available in time
+     * @see #leaseAsync()
+     */
+    public CompletableFuture<Lease<T>> leaseAsync(long time, TimeUnit unit) {
+        long start = System.nanoTime();
+        CompletableFuture<Lease<T>> result = new CompletableFuture<>();
+        if (closed.get()) {
+            result.completeExceptionally(new IllegalStateException("Trying to lease object from closed pool"));
+            return result;
+        }
+
+        if (asyncWaiters.isEmpty() && available.tryAcquire()) {
+            Lease<T> lease = pool[claimSlot()];
+            long waitNanos = System.nanoTime() - start;
+            if (isReady(lease)) {
+                completeAsyncLease(lease, result, waitNanos);
+            } else {
+                execute(() -> completeAsyncLease(lease, result, waitNanos));
+            }
+            return result;
+        }
+
+        if (unit != null) {
+            result.orTimeout(time, unit);
+        }
+        PendingLease<T> pending = new PendingLease<>(result, start);
+        result.whenComplete((l, t) -> {
+            if (t != null) {
+                if (t instanceof TimeoutException) {
+                    stats.timedOut();
+                }
+                asyncWaiters.remove(pending);
+            }
+        });
+        asyncWaiters.add(pending);
+
+        // A slot might have been returned before the request was queued
+        dispatchAsyncWaiters();
+        return result;
+    }
+
+    /**
+     * Prepare a claimed lease and complete an asynchronous lease request with it. The slot is released if the
+     * preparation fails, and passed on if the request was completed by someone else in the meantime.
+     */
+    private void completeAsyncLease(Lease<T> lease, CompletableFuture<Lease<T>> future, long waitNanos) {
+        long leaseState;
+        try {
+            leaseState = prepareLease(lease, waitNanos);
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            releaseSlot(lease.index);
+            return;
+        }
+        // The request might have timed out or been cancelled concurrently. If the lease was reclaimed meanwhile, the
+        // slot has already been returned
+        if (!future.complete(lease) && lease.deactivate(leaseState)) {
+            stats.leaseAborted();
+            returnSlot(lease.index);
+        }
+    }
+
+    /**
+     * Run a task holding a claimed slot on the pool's executor. The task is run on the calling thread if the executor
+     * rejects it, so that the slot is never lost.
+     */
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return true if the lease can be prepared without calling any user supplied function except the finalizer
+     */
+    private boolean isReady(Lease<T> lease) {
+        return beforeLeaseFunc == null && lease.isReady();
+    }
+
+    /**
+     * Make a claimed lease ready for use.
+     * <p>
+     * The lease is in the preparing phase while the object is created or verified, which leak detection leaves alone.
+     * The lease time is set before the lease becomes active.
+     *
+     * @param waitNanos the time the requester waited for the slot to be claimed
+     * @return the state of the activated lease
+     */
+    private long prepareLease(Lease<T> lease, long waitNanos) {
+        long claimedNanos = System.nanoTime();
+        long preparing = lease.startPreparing();
+        try {
+            lease.beforeLease();
+            if (beforeLeaseFunc != null) {
+                beforeLeaseFunc.accept(lease);
+            }
+        } catch (RuntimeException | Error e) {
+            lease.state.set(Lease.idle(preparing));
+            throw e;
+        }
+        long now = System.nanoTime();
+        lease.leasedAtNanos = now;
+        if (leakSiteSamplingRate > 0 && ThreadLocalRandom.current().nextInt(leakSiteSamplingRate) == 0) {
+            lease.leaseSite = new Throwable("Lease site");
+        } else {
+            lease.leaseSite = null;
+        }
+        long active = Lease.active(preparing);
+        lease.state.set(active);
+        stats.leased(waitNanos, now - claimedNanos);
+        return active;
+    }
+
+    /**
+     * @return true if the pool is closed
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Get a snapshot of the statistics for this pool.
+     *
+     * @return the statistics
+     */
+    public PoolStats getStats() {
+        int liveObjects = 0;
+        for (int i = 0; i < size; i++) {
+            if (pool[i].object != null) {
+                liveObjects++;
+            }
+        }
+        return stats.snapshot(size, liveObjects, asyncWaiters.size());
+    }
+
+    private Lease<T> findAvailableLease(long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (unit == null) {
+            available.acquire();
+        } else if (!available.tryAcquire(time, unit)) {
+            throw new TimeoutException();
+        }
+        return pool[claimSlot()];
+    }
+
+    /**
+     * Claim a free slot. Must only be called while holding a permit from {@link #available}, which guarantees that
+     * at least one slot is free or about to become free.
+     *
+     * @return the index of the claimed slot
+     */
+    private int claimSlot() {
+        switch (leaseStrategy) {
+            case LIFO:
+                return claimMostRecentlyReturnedSlot();
+            case THREAD_AFFINITY:
+                return claimThreadAffineSlot();
+            default:
+                return claimLowestSlot(0);
+        }
+    }
+
+    private int claimLowestSlot(int start) {
+        while (true) {
+            for (int n = 0; n < size; n++) {
+                int i = (start + n) % size;
+                if (slotState.get(i) == FREE && slotState.compareAndSet(i, FREE, LEASED)) {
+                    return i;
+                }
+            }
+            // Another thread holding a permit raced us for the slot we saw. The slot it released will show up.
+            Thread.onSpinWait();
+        }
+    }
+
+    private int claimMostRecentlyReturnedSlot() {
+        while (true) {
+            int candidate = -1;
+            long candidateReturned = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (slotState.get(i) == FREE) {
+                    // Empty slots are the coldest
+                    long returned = pool[i].object == null ? Long.MIN_VALUE : pool[i].lastReturnedNanos;
+                    if (candidate == -1 || returned > candidateReturned) {
+                        candidate = i;
+                        candidateReturned = returned;
+                    }
+                }
+            }
+            if (candidate != -1 && slotState.compareAndSet(candidate, FREE, LEASED)) {
+                return candidate;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private int claimThreadAffineSlot() {
+        int[] last = lastSlot.get();
+        int index = last[0];
+        if (index < 0 || !slotState.compareAndSet(index, FREE, LEASED)) {
+            // Start scanning at a thread specific offset to spread threads over the slots
+            index = claimLowestSlot((int) (Thread.currentThread().getId() % size));
+            last[0] = index;
+        }
+        return index;
+    }
+
+    private void freeSlot(int index) {
+        if (closed.get()) {
+            // A close which timed out might have given up on this slot, so the object is finalized here
+            try {
+                pool[index].finalizeObject();
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to finalize object released after the pool was closed", e);
+            }
+        }
+        slotState.set(index, FREE);
+        available.release();
+    }
+
+    /**
+     * Free a slot which has not been handed to a lessee and let pending asynchronous leases have it.
+     */
+    private void releaseSlot(int index) {
+        freeSlot(index);
+        if (!asyncWaiters.isEmpty()) {
+            dispatchAsyncWaiters();
+        }
+    }
+
+    /**
+     * Return a slot from a closed lease. The slot is handed directly to the first pending asynchronous lease if
+     * there is one, otherwise it is released.
+     */
+    private void returnSlot(int index) {
+        if (!asyncWaiters.isEmpty() && !closed.get() && handOffToAsyncWaiter(pool[index])) {
+            return;
+        }
+        // An asynchronous lease might have been queued after we looked
+        releaseSlot(index);
+    }
+
+    private void dispatchAsyncWaiters() {
+        while (!asyncWaiters.isEmpty() && !closed.get() && available.tryAcquire()) {
+            int index = claimSlot();
+            if (!handOffToAsyncWaiter(pool[index])) {
+                freeSlot(index);
+            }
+        }
+    }
+
+    /**
+     * Complete the first pending asynchronous lease which is still waiting with the submitted lease.
+     * <p>
+     * If the object must be created or verified, the waiter is completed by the pool's executor instead of the
+     * calling thread, which is usually the one returning a lease.
+     *
+     * @return true if the lease was handed off
+     */
+    private boolean handOffToAsyncWaiter(Lease<T> lease) {
+        PendingLease<T> waiter;
+        while ((waiter = asyncWaiters.poll()) != null) {
+            if (waiter.future.isDone()) {
+                continue;
+            }
+            long waitNanos = System.nanoTime() - waiter.startNanos;
+            if (!isReady(lease)) {
+                CompletableFuture<Lease<T>> future = waiter.future;
+                execute(() -> completeAsyncLease(lease, future, waitNanos));
+                return true;
+            }
+            long leaseState;
+            try {
+                leaseState = prepareLease(lease, waitNanos);
+            } catch (RuntimeException | Error e) {
+                waiter.future.completeExceptionally(e);
+                return false;
+            }
+            if (waiter.future.complete(lease)) {
+                return true;
+            }
+            // The waiter timed out or was cancelled concurrently
+            if (!lease.deactivate(leaseState)) {
+                // Reclaimed by a closing pool, which has returned the slot
+                return true;
+            }
+            stats.leaseAborted();
+        }
+        return false;
+    }
+
+    /**
+     * Reserve a free slot for maintenance. A reserved slot is neither free nor leased, and must be released with
+     * {@link #releaseSlot(int)}.
+     *
+     * @return true if the slot was reserved
+     */
+    private boolean reserveSlot(int index) {
+        if (slotState.get(index) != FREE || !available.tryAcquire()) {
+            return false;
+        }
+        if (slotState.compareAndSet(index, FREE, RESERVED)) {
+            return true;
+        }
+        available.release();
+        if (!asyncWaiters.isEmpty()) {
+            dispatchAsyncWaiters();
+        }
+        return false;
+    }
+
+    /**
+     * Hand a maintenance run to the pool's executor, unless the previous run is still going.
+     */
+    private void triggerMaintenance() {
+        if (!maintenanceRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    maintain();
+                } finally {
+                    maintenanceRunning.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            maintenanceRunning.set(false);
+            LOG.warn("Pool maintenance was rejected by the executor", e);
+        }
+    }
+
+    void maintain() {
+        try {
+            if (maxLeaseDurationNanos > 0L) {
+                detectLeaks();
+            }
+            evictExpired();
+            if (backgroundValidation) {
+                validateIdle();
+            }
+            if (warmTarget > 0) {
+                warmUp();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Pool maintenance failed", e);
+        }
+    }
+
+    /**
+     * Finalize idle objects which have passed the idle timeout or the max lifetime.
+     * <p>
+     * Idle timeouts never bring the number of live idle objects below min idle or the warm target, while objects
+     * passing their max lifetime are always recycled.
+     */
+    void evictExpired() {
+        if (idleTimeoutNanos <= 0L && maxLifetimeNanos <= 0L) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        int keepIdle = Math.max(minIdle, warmTarget);
+        int idleLive = 0;
+        for (int i = 0; i < size; i++) {
+            if (slotState.get(i) == FREE && pool[i].object != null) {
+                idleLive++;
+            }
+        }
+
+        for (int i = 0; i < size && !closed.get(); i++) {
+            if (reserveSlot(i)) {
+                try {
+                    Lease<T> l = pool[i];
+                    if (l.object != null) {
+                        boolean lifetimeExpired = maxLifetimeNanos > 0L && now - l.createdNanos > maxLifetimeNanos;
+                        boolean idleExpired = idleTimeoutNanos > 0L && idleLive > keepIdle
+                                && now - l.lastReturnedNanos > idleTimeoutNanos;
+                        if (lifetimeExpired || idleExpired) {
+                            l.finalizeObject();
+                            idleLive--;
+                        }
+                    }
+                } finally {
+                    releaseSlot(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finalize one idle object to make room for an object somewhere else. The slot stays in the pool and is refilled
+     * lazily on the next lease.
+     *
+     * @return true if an object was finalized
+     */
+    boolean evictIdleObject() {
+        for (int i = 0; i < size && !closed.get(); i++) {
+            if (pool[i].object != null && reserveSlot(i)) {
+                try {
+                    if (pool[i].object != null) {
+                        pool[i].finalizeObject();
+                        return true;
+                    }
+                } finally {
+                    releaseSlot(i);
+                }
+            }
         }
+        return false;
     }
 
+    /**
+     * Run the verifier on idle objects and replace the ones failing.
+     */
+    void validateIdle() {
+        for (int i = 0; i < size && !closed.get(); i++) {
+            if (reserveSlot(i)) {
+                try {
+                    Lease<T> l = pool[i];
+                    if (l.object != null) {
+                        if (!l.verify()) {
+                            l.finalizeObject();
+                            l.createObject();
+                        }
+                        l.validated = true;
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to validate pooled object", e);
+                } finally {
+                    releaseSlot(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create objects in empty slots until the number of live objects reaches the warm target.
+     */
+    void warmUp() {
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if (slotState.get(i) == LEASED || pool[i].object != null) {
+                live++;
+            }
+        }
+
+        for (int i = 0; i < size && live < warmTarget && !closed.get(); i++) {
+            if (pool[i].object == null && reserveSlot(i)) {
+                try {
+                    Lease<T> l = pool[i];
+                    if (l.object == null) {
+                        l.createObject();
+                        l.validated = true;
+                        l.lastReturnedNanos = System.nanoTime();
+                        live++;
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to create pooled object", e);
+                    return;
+                } finally {
+                    releaseSlot(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report leases held for longer than the max lease duration, and reclaim them if configured to.
+     * <p>
+     * Leases which are still being prepared are skipped, since their lease time is not set yet.
+     */
+    void detectLeaks() {
+        long now = System.nanoTime();
+        for (int i = 0; i < size && !closed.get(); i++) {
+            Lease<T> l = pool[i];
+            long leaseState = l.state.get();
+            if (slotState.get(i) != LEASED || !Lease.isActive(leaseState)) {
+                continue;
+            }
+            // Set before the lease was activated. If the slot has been leased again since, reclaim will fail
+            long leasedAt = l.leasedAtNanos;
+            if (now - leasedAt <= maxLeaseDurationNanos) {
+                continue;
+            }
+
+            if (!l.leakReported) {
+                l.leakReported = true;
+                LeakReport<T> report = new LeakReport<>(l.object, Duration.ofNanos(now - leasedAt), l.leaseSite);
+                if (leakHandler != null) {
+                    leakHandler.accept(report);
+                } else {
+                    LOG.warn("Lease held for {}, which is longer than the max lease duration",
+                            report.getLeaseDuration(), report.getLeaseSite().orElse(null));
+                }
+            }
+            if (reclaimLeakedLeases) {
+                reclaim(i, leaseState);
+            }
+        }
+    }
+
+    /**
+     * Forcibly take back a leased slot. The object is finalized and the slot gets a new {@link Lease} instance, so
+     * that the old holder can neither use the object nor release the slot again.
+     *
+     * @param leaseState the state observed for the lease to reclaim. If the lease is not active, or the slot has been
+     *                   leased again since, it is left alone
+     * @return true if the lease was reclaimed
+     */
+    private boolean reclaim(int index, long leaseState) {
+        Lease<T> l = pool[index];
+        if (!Lease.isActive(leaseState) || !l.deactivate(leaseState)) {
+            return false;
+        }
+        stats.returned();
+        stats.reclaimed();
+        try {
+            l.finalizeObject();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to finalize reclaimed object", e);
+        }
+        pool[index] = new Lease<>(this, index);
+        returnSlot(index);
+        return true;
+    }
+
+    /**
+     * Close the pool, waiting for all leases to be returned before running finalizers.
+     *
+     * @throws InterruptedException if interrupted while waiting for leases
+     */
     @Override
     public void close() throws InterruptedException {
-        if (closed.compareAndSet(false, true)) {
+        if (beginClose()) {
             // Wait for leases to be closed
-            while (leases.cardinality() > 0) {
-                lock.lock();
+            available.acquire(size);
+            finalizeAll();
+        }
+    }
+
+    /**
+     * Close the pool, waiting at most the submitted time for leases to be returned. Leases still held after the
+     * timeout are reclaimed and their objects finalized.
+     * <p>
+     * Leases being prepared and slots used by a maintenance run can't be reclaimed, since the object factory, the
+     * verifier or the before lease function is still running. They get a short grace period to finish. If they don't,
+     * the pool gives up on them and their objects are finalized when the slots are released.
+     *
+     * @param time the maximum time to wait for leases
+     * @param unit the time unit of the time argument
+     * @return true if all leases were returned in time, false if some leases had to be reclaimed or given up on
+     * @throws InterruptedException if interrupted while waiting for leases
+     */
+    public boolean close(long time, TimeUnit unit) throws InterruptedException {
+        if (!beginClose()) {
+            return true;
+        }
+
+        if (available.tryAcquire(size, time, unit)) {
+            finalizeAll();
+            return true;
+        }
+
+        long giveUpAt = System.nanoTime() + CLOSE_GRACE_NANOS;
+        do {
+            for (int i = 0; i < size; i++) {
+                if (slotState.get(i) == LEASED) {
+                    Lease<T> l = pool[i];
+                    if (reclaim(i, l.state.get())) {
+                        LOG.warn("Reclaimed lease which was not returned before the pool was closed",
+                                l.leaseSite);
+                    }
+                }
+            }
+            // Leases which were being prepared might have become active and can be reclaimed in the next round
+            if (available.tryAcquire(size, 10, TimeUnit.MILLISECONDS)) {
+                finalizeAll();
+                return false;
+            }
+        } while (System.nanoTime() - giveUpAt < 0L);
+
+        int abandoned = 0;
+        for (int i = 0; i < size; i++) {
+            if (slotState.compareAndSet(i, FREE, RESERVED)) {
                 try {
-                    notEmpty.await();
+                    pool[i].finalizeObject();
                 } finally {
-                    lock.unlock();
+                    slotState.set(i, FREE);
                 }
+            } else {
+                abandoned++;
             }
+        }
+        LOG.warn("Gave up on {} slots which were still being prepared or maintained when the pool was closed",
+                abandoned);
+        return false;
+    }
 
-            // Run finalizers
-            for (int i = 0; i < size; i++) {
-                pool[i].finalizeObject(objectFinalizer);
-            }
+    private boolean beginClose() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(false);
+        }
+
+        PendingLease<T> waiter;
+        while ((waiter = asyncWaiters.poll()) != null) {
+            waiter.future.completeExceptionally(new IllegalStateException("Pool was closed while waiting for lease"));
+        }
+        return true;
+    }
+
+    private void finalizeAll() {
+        for (int i = 0; i < size; i++) {
+            pool[i].finalizeObject();
         }
     }
 
     public static class Lease<T> implements AutoCloseable {
-        private AtomicBoolean leased = new AtomicBoolean(false);
+        private static final long IDLE = 0L;
+        private static final long PREPARING = 1L;
+        private static final long ACTIVE = 2L;
+        private static final long PHASE_MASK = 3L;
+
+        // The phase of the lease in the lowest bits, and above them a generation counted up each time the slot is
+        // leased. Compare-and-set on the whole state never mistakes a later lease of the slot for the observed one.
+        private final AtomicLong state = new AtomicLong(IDLE);
         private T object;
+        private long createdNanos;
+        private long lastReturnedNanos;
+        private boolean validated;
+        private volatile long leasedAtNanos;
+        private Throwable leaseSite;
+        private boolean leakReported;
         private final int index;
-        private final Pool pool;
+        private final Pool<T> pool;
 
-        private Lease(Pool pool, int index) {
+        private Lease(Pool<T> pool, int index) {
             this.pool = pool;
             this.index = index;
         }
 
-        private void beforeLease(Supplier<T> objectFactory, Predicate<T> verifier, Consumer<T> objectFinalizer) {
-            leased.compareAndSet(false, true);
+        /**
+         * Start a new generation of this lease in the preparing phase. Only called by the claimer of the slot.
+         *
+         * @return the new state
+         */
+        private long startPreparing() {
+            long preparing = ((state.get() | PHASE_MASK) + 1L) | PREPARING;
+            state.set(preparing);
+            return preparing;
+        }
+
+        /**
+         * End the lease if it is still in the observed state.
+         *
+         * @return true if this call ended the lease
+         */
+        private boolean deactivate(long observed) {
+            return isActive(observed) && state.compareAndSet(observed, idle(observed));
+        }
+
+        private static boolean isActive(long state) {
+            return (state & PHASE_MASK) == ACTIVE;
+        }
+
+        private static long active(long state) {
+            return (state & ~PHASE_MASK) | ACTIVE;
+        }
+
+        private static long idle(long state) {
+            return state & ~PHASE_MASK;
+        }
+
+        private void beforeLease() {
+            leakReported = false;
+            boolean skipVerify = validated;
+            validated = false;
+            if (object != null && pool.maxLifetimeNanos > 0L
+                    && System.nanoTime() - createdNanos > pool.maxLifetimeNanos) {
+                finalizeObject();
+            }
             if (object == null) {
-                object = objectFactory.get();
-            } else if (verifier != null && !verifier.test(object)) {
-                objectFinalizer.accept(object);
-                object = objectFactory.get();
+                createObject();
+            } else if (!skipVerify && pool.verifier != null && !verify()) {
+                finalizeObject();
+                createObject();
             }
         }
 
-        private void finalizeObject(Consumer<T> objectFinalizer) {
-            if (objectFinalizer != null && object != null) {
-                objectFinalizer.accept(object);
+        /**
+         * @return true if the object can be leased without creating or verifying it
+         */
+        private boolean isReady() {
+            return object != null
+                    && (validated || pool.verifier == null)
+                    && (pool.maxLifetimeNanos <= 0L || System.nanoTime() - createdNanos <= pool.maxLifetimeNanos);
+        }
+
+        private boolean verify() {
+            boolean valid = pool.verifier.test(object);
+            pool.stats.validated(valid);
+            return valid;
+        }
+
+        private void createObject() {
+            object = pool.objectFactory.get();
+            createdNanos = System.nanoTime();
+            pool.stats.created();
+        }
+
+        private void finalizeObject() {
+            if (object != null) {
+                if (pool.objectFinalizer != null) {
+                    pool.objectFinalizer.accept(object);
+                }
+                pool.stats.finalized();
             }
+            object = null;
         }
 
         public T getObject() {
-            if (leased.get()) {
+            // The before lease function might use the object while the lease is being prepared
+            if ((state.get() & PHASE_MASK) != IDLE) {
                 return object;
             } else {
                 throw new IllegalStateException("Trying to use object from closed lease");
@@ -145,17 +1080,310 @@ public class Pool<T> implements AutoCloseable {
 
         @Override
         public void close() {
+            long observed = state.get();
+            if (!isActive(observed)) {
+                return;
+            }
             if (pool.afterReturnFunc != null) {
                 pool.afterReturnFunc.accept(this);
             }
-            leased.compareAndSet(true, false);
-            pool.lock.lock();
-            try {
-                pool.leases.clear(index);
-                pool.notEmpty.signal();
-            } finally {
-                pool.lock.unlock();
+            if (deactivate(observed)) {
+                pool.stats.returned();
+                lastReturnedNanos = System.nanoTime();
+                pool.returnSlot(index);
+            }
+        }
+    }
+
+    /**
+     * A group of leases taken with {@link #leaseAll(int, long, TimeUnit)}, which are returned together.
+     *
+     * @param <T> the type of the pooled objects
+     */
+    public static class Leases<T> implements AutoCloseable {
+        private final List<Lease<T>> leases;
+
+        private Leases(List<Lease<T>> leases) {
+            this.leases = Collections.unmodifiableList(leases);
+        }
+
+        public List<Lease<T>> getLeases() {
+            return leases;
+        }
+
+        public int size() {
+            return leases.size();
+        }
+
+        public T getObject(int i) {
+            return leases.get(i).getObject();
+        }
+
+        @Override
+        public void close() {
+            for (Lease<T> l : leases) {
+                l.close();
+            }
+        }
+    }
+
+    /**
+     * Information about a lease held for longer than the max lease duration.
+     *
+     * @param <T> the type of the pooled objects
+     */
+    public static class LeakReport<T> {
+        private final T object;
+        private final Duration leaseDuration;
+        private final Throwable leaseSite;
+
+        private LeakReport(T object, Duration leaseDuration, Throwable leaseSite) {
+            this.object = object;
+            this.leaseDuration = leaseDuration;
+            this.leaseSite = leaseSite;
+        }
+
+        /**
+         * @return the leased object
+         */
+        public T getObject() {
+            return object;
+        }
+
+        /**
+         * @return how long the object has been leased
+         */
+        public Duration getLeaseDuration() {
+            return leaseDuration;
+        }
+
+        /**
+         * @return an exception whose stack trace shows where the object was leased, if this lease was sampled
+         */
+        public Optional<Throwable> getLeaseSite() {
+            return Optional.ofNullable(leaseSite);
+        }
+    }
+
+    private static class PendingLease<T> {
+        private final CompletableFuture<Lease<T>> future;
+        private final long startNanos;
+
+        private PendingLease(CompletableFuture<Lease<T>> future, long startNanos) {
+            this.future = future;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Strategies for choosing which free slot to lease.
+     */
+    public enum LeaseStrategy {
+        /**
+         * Lease the free slot with the lowest index.
+         */
+        LOWEST_INDEX,
+        /**
+         * Lease the most recently returned object. Objects which are seldom used stay idle and can be evicted.
+         */
+        LIFO,
+        /**
+         * Lease the slot last used by the current thread if it is free, otherwise fall back to a scan starting at a
+         * thread specific offset.
+         */
+        THREAD_AFFINITY
+    }
+
+    /**
+     * Builder for {@link Pool}.
+     *
+     * @param <T> the type of the pooled objects
+     */
+    public static class Builder<T> {
+        private final Supplier<T> objectFactory;
+        private Predicate<T> verifier;
+        private Consumer<T> objectFinalizer;
+        private Consumer<Lease<T>> beforeLeaseFunc;
+        private Consumer<Lease<T>> afterReturnFunc;
+        private int maxSize = 1;
+        private int minIdle = 0;
+        private Duration idleTimeout;
+        private Duration maxLifetime;
+        private Duration maintenanceInterval = Duration.ofSeconds(30);
+        private LeaseStrategy leaseStrategy = LeaseStrategy.LOWEST_INDEX;
+        private int warmTarget = 0;
+        private boolean backgroundValidation = false;
+        private Duration maxLeaseDuration;
+        private int leakSiteSamplingRate = 0;
+        private Consumer<LeakReport<T>> leakHandler;
+        private boolean reclaimLeakedLeases = false;
+        private Executor executor;
+
+        private Builder(Supplier<T> objectFactory) {
+            this.objectFactory = Objects.requireNonNull(objectFactory, "objectFactory");
+        }
+
+        /**
+         * @param verifier predicate run before an existing object is leased. Objects failing the test are finalized
+         *                 and replaced
+         */
+        public Builder<T> withVerifier(Predicate<T> verifier) {
+            this.verifier = verifier;
+            return this;
+        }
+
+        /**
+         * @param objectFinalizer function run when an object is removed from the pool
+         */
+        public Builder<T> withObjectFinalizer(Consumer<T> objectFinalizer) {
+            this.objectFinalizer = objectFinalizer;
+            return this;
+        }
+
+        public Builder<T> withBeforeLeaseFunc(Consumer<Lease<T>> beforeLeaseFunc) {
+            this.beforeLeaseFunc = beforeLeaseFunc;
+            return this;
+        }
+
+        public Builder<T> withAfterReturnFunc(Consumer<Lease<T>> afterReturnFunc) {
+            this.afterReturnFunc = afterReturnFunc;
+            return this;
+        }
+
+        /**
+         * @param maxSize the maximum number of objects the pool will hold
+         */
+        public Builder<T> withMaxSize(int maxSize) {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("maxSize must be at least 1");
+            }
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @param minIdle the number of idle objects the reaper will leave alive when evicting idle objects
+         */
+        public Builder<T> withMinIdle(int minIdle) {
+            if (minIdle < 0) {
+                throw new IllegalArgumentException("minIdle must not be negative");
+            }
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * @param idleTimeout the time an object might stay unused in the pool before it is finalized
+         */
+        public Builder<T> withIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @param maxLifetime the time from creation after which an object is finalized and replaced
+         */
+        public Builder<T> withMaxLifetime(Duration maxLifetime) {
+            this.maxLifetime = maxLifetime;
+            return this;
+        }
+
+        /**
+         * @param maintenanceInterval how often the background reaper looks for expired objects
+         */
+        public Builder<T> withMaintenanceInterval(Duration maintenanceInterval) {
+            if (maintenanceInterval.isNegative() || maintenanceInterval.isZero()) {
+                throw new IllegalArgumentException("maintenanceInterval must be positive");
+            }
+            this.maintenanceInterval = maintenanceInterval;
+            return this;
+        }
+
+        /**
+         * @param leaseStrategy the strategy for choosing which free slot to lease. Defaults to
+         *                      {@link LeaseStrategy#LOWEST_INDEX}
+         */
+        public Builder<T> withLeaseStrategy(LeaseStrategy leaseStrategy) {
+            this.leaseStrategy = Objects.requireNonNull(leaseStrategy, "leaseStrategy");
+            return this;
+        }
+
+        /**
+         * @param warmTarget the number of objects the maintenance task creates when the pool is built, and keeps
+         *                   alive afterwards
+         */
+        public Builder<T> withWarmTarget(int warmTarget) {
+            if (warmTarget < 0) {
+                throw new IllegalArgumentException("warmTarget must not be negative");
+            }
+            this.warmTarget = warmTarget;
+            return this;
+        }
+
+        /**
+         * @param backgroundValidation if true, the maintenance task runs the verifier on idle objects and replaces
+         *                             the ones failing. Has no effect if there is no verifier
+         */
+        public Builder<T> withBackgroundValidation(boolean backgroundValidation) {
+            this.backgroundValidation = backgroundValidation;
+            return this;
+        }
+
+        /**
+         * @param maxLeaseDuration leases held for longer are reported as leaks by the maintenance task
+         */
+        public Builder<T> withMaxLeaseDuration(Duration maxLeaseDuration) {
+            this.maxLeaseDuration = maxLeaseDuration;
+            return this;
+        }
+
+        /**
+         * @param leakSiteSamplingRate capture the call site for one in this many leases, to be included in leak
+         *                             reports. Zero, the default, turns capturing off
+         */
+        public Builder<T> withLeakSiteSamplingRate(int leakSiteSamplingRate) {
+            if (leakSiteSamplingRate < 0) {
+                throw new IllegalArgumentException("leakSiteSamplingRate must not be negative");
+            }
+            this.leakSiteSamplingRate = leakSiteSamplingRate;
+            return this;
+        }
+
+        /**
+         * @param leakHandler function called once for each lease held for longer than the max lease duration. If
+         *                    not set, leaks are logged
+         */
+        public Builder<T> withLeakHandler(Consumer<LeakReport<T>> leakHandler) {
+            this.leakHandler = leakHandler;
+            return this;
+        }
+
+        /**
+         * @param reclaimLeakedLeases if true, leases held for longer than the max lease duration are taken back and
+         *                            their objects finalized
+         */
+        public Builder<T> withReclaimLeakedLeases(boolean reclaimLeakedLeases) {
+            this.reclaimLeakedLeases = reclaimLeakedLeases;
+            return this;
+        }
+
+        /**
+         * @param executor the executor running the maintenance task and preparing asynchronous leases. Defaults to a
+         *                 shared pool of daemon threads, which grows as needed
+         */
+        public Builder<T> withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Pool<T> build() {
+            if (minIdle > maxSize) {
+                throw new IllegalArgumentException("minIdle must not be greater than maxSize");
+            }
+            if (warmTarget > maxSize) {
+                throw new IllegalArgumentException("warmTarget must not be greater than maxSize");
             }
+            return new Pool<>(this);
         }
     }
 }
@@ -0,0 +1,325 @@
+package no.nb.nna.veidemann.commons.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the statistics of a {@link Pool}.
+ * <p>
+ * The lease wait is the time from a lease is requested until a slot is free, which tells if the pool is undersized.
+ * The time spent preparing the object after that, i.e. creating or verifying it and running the before lease
+ * function, is recorded separately.
+ * <p>
+ * The times are recorded in histograms with power of two buckets, so the percentiles are upper bounds which are at
+ * most twice the real value.
+ */
+public class PoolStats {
+    private final int maxSize;
+    private final int leased;
+    private final int peakLeased;
+    private final int liveObjects;
+    private final int pendingAsyncLeases;
+    private final long leaseCount;
+    private final long timeoutCount;
+    private final long createdCount;
+    private final long validatedCount;
+    private final long invalidatedCount;
+    private final long finalizedCount;
+    private final long reclaimedCount;
+    private final long[] waitHistogram;
+    private final long maxWaitNanos;
+    private final long[] prepareHistogram;
+    private final long maxPrepareNanos;
+
+    private PoolStats(int maxSize, int liveObjects, int pendingAsyncLeases, Recorder recorder) {
+        this.maxSize = maxSize;
+        this.liveObjects = liveObjects;
+        this.pendingAsyncLeases = pendingAsyncLeases;
+        this.leased = recorder.leased.get();
+        this.peakLeased = recorder.peakLeased.get();
+        this.leaseCount = recorder.leaseCount.sum();
+        this.timeoutCount = recorder.timeoutCount.sum();
+        this.createdCount = recorder.createdCount.sum();
+        this.validatedCount = recorder.validatedCount.sum();
+        this.invalidatedCount = recorder.invalidatedCount.sum();
+        this.finalizedCount = recorder.finalizedCount.sum();
+        this.reclaimedCount = recorder.reclaimedCount.sum();
+        this.waitHistogram = sum(recorder.waitHistogram);
+        this.maxWaitNanos = recorder.maxWaitNanos.get();
+        this.prepareHistogram = sum(recorder.prepareHistogram);
+        this.maxPrepareNanos = recorder.maxPrepareNanos.get();
+    }
+
+    private static long[] sum(LongAdder[] histogram) {
+        long[] result = new long[histogram.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = histogram[i].sum();
+        }
+        return result;
+    }
+
+    /**
+     * @return the maximum number of objects in the pool
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of objects currently leased
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return the highest number of objects leased at the same time since the pool was created
+     */
+    public int getPeakLeased() {
+        return peakLeased;
+    }
+
+    /**
+     * @return the number of objects currently created, whether leased or idle
+     */
+    public int getLiveObjects() {
+        return liveObjects;
+    }
+
+    /**
+     * @return the number of asynchronous leases waiting for an object
+     */
+    public int getPendingAsyncLeases() {
+        return pendingAsyncLeases;
+    }
+
+    /**
+     * @return the number of successful leases since the pool was created
+     */
+    public long getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * @return the number of lease requests which timed out waiting for an object
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return the number of times the object factory has been called
+     */
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return the number of times the verifier has been called
+     */
+    public long getValidatedCount() {
+        return validatedCount;
+    }
+
+    /**
+     * @return the number of objects which failed verification
+     */
+    public long getInvalidatedCount() {
+        return invalidatedCount;
+    }
+
+    /**
+     * @return the number of objects which have been removed from the pool
+     */
+    public long getFinalizedCount() {
+        return finalizedCount;
+    }
+
+    /**
+     * @return the number of leases which were taken back by force
+     */
+    public long getReclaimedCount() {
+        return reclaimedCount;
+    }
+
+    /**
+     * Get the time a lease request waited for a free slot for the requested percentile.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return an upper bound for the wait time
+     */
+    public Duration getLeaseWaitPercentile(double percentile) {
+        return percentile(waitHistogram, maxWaitNanos, percentile);
+    }
+
+    /**
+     * @return the longest time a lease request waited for a free slot
+     */
+    public Duration getMaxLeaseWait() {
+        return Duration.ofNanos(maxWaitNanos);
+    }
+
+    /**
+     * Get the time spent preparing the object for a lease for the requested percentile.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return an upper bound for the preparation time
+     */
+    public Duration getLeasePreparePercentile(double percentile) {
+        return percentile(prepareHistogram, maxPrepareNanos, percentile);
+    }
+
+    /**
+     * @return the longest time spent preparing the object for a lease
+     */
+    public Duration getMaxLeasePrepare() {
+        return Duration.ofNanos(maxPrepareNanos);
+    }
+
+    /**
+     * @return the ratio of leased objects to the maximum size of the pool
+     */
+    public double getUtilization() {
+        return (double) leased / maxSize;
+    }
+
+    private static Duration percentile(long[] histogram, long maxNanos, double percentile) {
+        if (percentile < 0d || percentile > 100d) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = 0L;
+        for (long c : histogram) {
+            total += c;
+        }
+        if (total == 0L) {
+            return Duration.ZERO;
+        }
+
+        long target = Math.max(1L, (long) Math.ceil(total * percentile / 100d));
+        long count = 0L;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= target) {
+                return Duration.ofNanos(Math.min(bucketUpperBound(i), maxNanos));
+            }
+        }
+        return Duration.ofNanos(maxNanos);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PoolStats{");
+        sb.append("maxSize=").append(maxSize);
+        sb.append(", leased=").append(leased);
+        sb.append(", peakLeased=").append(peakLeased);
+        sb.append(", liveObjects=").append(liveObjects);
+        sb.append(", pendingAsyncLeases=").append(pendingAsyncLeases);
+        sb.append(", leaseCount=").append(leaseCount);
+        sb.append(", timeoutCount=").append(timeoutCount);
+        sb.append(", createdCount=").append(createdCount);
+        sb.append(", validatedCount=").append(validatedCount);
+        sb.append(", invalidatedCount=").append(invalidatedCount);
+        sb.append(", finalizedCount=").append(finalizedCount);
+        sb.append(", reclaimedCount=").append(reclaimedCount);
+        sb.append(", leaseWaitP50=").append(getLeaseWaitPercentile(50));
+        sb.append(", leaseWaitP99=").append(getLeaseWaitPercentile(99));
+        sb.append(", maxLeaseWait=").append(getMaxLeaseWait());
+        sb.append(", leasePrepareP99=").append(getLeasePreparePercentile(99));
+        sb.append(", maxLeasePrepare=").append(getMaxLeasePrepare());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * The counters of a pool. Counters are striped to keep recording cheap under contention.
+     */
+    static class Recorder {
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger peakLeased = new AtomicInteger();
+        private final LongAdder leaseCount = new LongAdder();
+        private final LongAdder timeoutCount = new LongAdder();
+        private final LongAdder createdCount = new LongAdder();
+        private final LongAdder validatedCount = new LongAdder();
+        private final LongAdder invalidatedCount = new LongAdder();
+        private final LongAdder finalizedCount = new LongAdder();
+        private final LongAdder reclaimedCount = new LongAdder();
+        private final LongAdder[] waitHistogram = new LongAdder[64];
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+        private final LongAdder[] prepareHistogram = new LongAdder[64];
+        private final LongAccumulator maxPrepareNanos = new LongAccumulator(Math::max, 0L);
+
+        Recorder() {
+            for (int i = 0; i < waitHistogram.length; i++) {
+                waitHistogram[i] = new LongAdder();
+                prepareHistogram[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param waitNanos    the time from the lease was requested until a slot was claimed
+         * @param prepareNanos the time from the slot was claimed until the lease was ready
+         */
+        void leased(long waitNanos, long prepareNanos) {
+            int current = leased.incrementAndGet();
+            if (current > peakLeased.get()) {
+                peakLeased.accumulateAndGet(current, Math::max);
+            }
+            leaseCount.increment();
+            record(waitHistogram, maxWaitNanos, waitNanos);
+            record(prepareHistogram, maxPrepareNanos, prepareNanos);
+        }
+
+        private static void record(LongAdder[] histogram, LongAccumulator max, long nanos) {
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            histogram[Math.min(63, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+            max.accumulate(nanos);
+        }
+
+        void returned() {
+            leased.decrementAndGet();
+        }
+
+        /**
+         * Undo the counting of a lease which was prepared, but could not be handed to the requester.
+         */
+        void leaseAborted() {
+            leased.decrementAndGet();
+            leaseCount.decrement();
+        }
+
+        void timedOut() {
+            timeoutCount.increment();
+        }
+
+        void created() {
+            createdCount.increment();
+        }
+
+        void validated(boolean valid) {
+            validatedCount.increment();
+            if (!valid) {
+                invalidatedCount.increment();
+            }
+        }
+
+        void finalized() {
+            finalizedCount.increment();
+        }
+
+        void reclaimed() {
+            reclaimedCount.increment();
+        }
+
+        PoolStats snapshot(int maxSize, int liveObjects, int pendingAsyncLeases) {
+            return new PoolStats(maxSize, liveObjects, pendingAsyncLeases, this);
+        }
+    }
+}
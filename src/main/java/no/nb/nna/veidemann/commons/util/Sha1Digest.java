@@ -2,31 +2,111 @@ package no.nb.nna.veidemann.commons.util;
 
 import com.google.protobuf.ByteString;
 
-import java.math.BigInteger;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Sha1Digest {
+    // Regions smaller than this are read through a direct buffer since mapping has a fixed cost
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> readBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
     private final MessageDigest digest;
+    private DigestValue digestValue;
     private String digestString;
+    private char[] hexBuffer;
     private boolean dirty = true;
+    private Map<String, Checkpoint> checkpoints;
+    // Checkpoint at the current position, which shares the state of this digest until the next update
+    private Checkpoint pendingCheckpoint;
 
     public Sha1Digest() {
-        try {
-            this.digest = MessageDigest.getInstance("sha1");
-        } catch (NoSuchAlgorithmException e) {
-            // Should never happen because there is a requirement for all JRE implementations to include SHA1
-            throw new RuntimeException(e);
-        }
+        this.digest = DigestFactory.newSha1MessageDigest();
     }
 
-    private Sha1Digest(MessageDigest digest) {
+    private Sha1Digest(MessageDigest digest, Sha1Digest original) {
         this.digest = digest;
+        if (original.checkpoints != null) {
+            checkpoints = new HashMap<>(original.checkpoints);
+            pendingCheckpoint = original.pendingCheckpoint;
+        }
     }
 
-    public Sha1Digest update(ByteString data) {
+    private void beforeUpdate() {
         dirty = true;
+        if (pendingCheckpoint != null) {
+            if (pendingCheckpoint.value == null) {
+                pendingCheckpoint.state = cloneDigest();
+            }
+            pendingCheckpoint = null;
+        }
+    }
+
+    /**
+     * Record the state of the digest at the current position.
+     * <p>
+     * The state is only copied if the digest is updated later, and checkpoints at the same position share one copy.
+     * The checkpoint is not finalized until asked for with {@link #getCheckpoint(String)}.
+     *
+     * @param name the name of the checkpoint. An existing checkpoint with the same name is replaced
+     * @return this object
+     */
+    public Sha1Digest checkpoint(String name) {
+        if (checkpoints == null) {
+            checkpoints = new HashMap<>();
+        }
+        if (pendingCheckpoint == null) {
+            pendingCheckpoint = new Checkpoint();
+        }
+        checkpoints.put(name, pendingCheckpoint);
+        return this;
+    }
+
+    /**
+     * Get the digest of the content up to a checkpoint.
+     *
+     * @param name the name of the checkpoint
+     * @return the digest, or null if there is no checkpoint with the name
+     */
+    public DigestValue getCheckpoint(String name) {
+        Checkpoint checkpoint = checkpoints == null ? null : checkpoints.get(name);
+        if (checkpoint == null) {
+            return null;
+        }
+        if (checkpoint.value == null) {
+            if (checkpoint.state == null) {
+                // Not updated since the checkpoint was made
+                checkpoint.value = getDigestValue();
+            } else {
+                checkpoint.value = DigestValue.wrap(checkpoint.state.digest());
+                checkpoint.state = null;
+            }
+        }
+        return checkpoint.value;
+    }
+
+    /**
+     * Get the digest of the content up to a checkpoint prefixed with the algorithm.
+     *
+     * @param name the name of the checkpoint
+     * @return the prefixed digest string, or null if there is no checkpoint with the name
+     */
+    public String getPrefixedCheckpointString(String name) {
+        DigestValue value = getCheckpoint(name);
+        return value == null ? null : "sha1:" + value.toHex();
+    }
+
+    public Sha1Digest update(ByteString data) {
+        beforeUpdate();
         for (ByteBuffer b : data.asReadOnlyByteBufferList()) {
             digest.update(b);
         }
@@ -34,13 +114,68 @@ public class Sha1Digest {
     }
 
     public Sha1Digest update(ByteBuffer data) {
-        dirty = true;
+        beforeUpdate();
         digest.update(data);
         return this;
     }
 
+    /**
+     * Update the digest with a region of a file without copying it through the Java heap.
+     * <p>
+     * Large regions are memory mapped in windows, smaller regions are read through a direct buffer. The channel's
+     * position is not changed.
+     *
+     * @param channel  the channel to read from
+     * @param position the position in the file to start reading
+     * @param length   the number of bytes to read. The region is truncated at the end of the file
+     * @return this object
+     * @throws IOException if reading the file fails
+     */
+    public Sha1Digest update(FileChannel channel, long position, long length) throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("Position and length must be non-negative");
+        }
+        beforeUpdate();
+        long end = position + Math.min(length, Math.max(0L, channel.size() - position));
+        if (end - position >= MAP_THRESHOLD) {
+            while (position < end) {
+                long windowSize = Math.min(MAP_WINDOW_SIZE, end - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                digest.update(window);
+                position += windowSize;
+            }
+        } else {
+            ByteBuffer buf = readBuffer.get();
+            while (position < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - position));
+                int read = channel.read(buf, position);
+                if (read < 0) {
+                    break;
+                }
+                buf.flip();
+                digest.update(buf);
+                position += read;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Update the digest with the content of a file.
+     *
+     * @param file the file to read
+     * @return this object
+     * @throws IOException if reading the file fails
+     */
+    public Sha1Digest update(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return update(channel, 0L, channel.size());
+        }
+    }
+
     public Sha1Digest update(char... data) {
-        dirty = true;
+        beforeUpdate();
         for (char b : data) {
             digest.update((byte) b);
         }
@@ -48,7 +183,7 @@ public class Sha1Digest {
     }
 
     public Sha1Digest update(byte... data) {
-        dirty = true;
+        beforeUpdate();
         digest.update(data);
         return this;
     }
@@ -63,24 +198,55 @@ public class Sha1Digest {
     }
 
     public String getRawDigestString() {
-        if (dirty) {
-            try {
-                MessageDigest soFar = (MessageDigest) digest.clone();
-                digestString = String.format("%040x", new BigInteger(1, ((MessageDigest) digest.clone()).digest()));
-                dirty = false;
-            } catch (CloneNotSupportedException cnse) {
-                throw new RuntimeException("Couldn't make digest of partial content");
+        if (digestString == null || dirty) {
+            DigestValue value = getDigestValue();
+            if (hexBuffer == null) {
+                hexBuffer = new char[DigestValue.hexLength(value.length())];
             }
+            value.writeHex(hexBuffer, 0);
+            digestString = new String(hexBuffer);
         }
         return digestString;
     }
 
+    /**
+     * Get the digest of the content so far as upper case Base32, which is the form used in WARC digest headers.
+     *
+     * @return the Base32 encoded digest
+     */
+    public String getBase32DigestString() {
+        return getDigestValue().toBase32();
+    }
+
+    /**
+     * Get the digest of the content so far. Updating this object afterwards does not affect the returned value.
+     *
+     * @return the digest
+     */
+    public DigestValue getDigestValue() {
+        if (dirty) {
+            digestValue = DigestValue.wrap(cloneDigest().digest());
+            digestString = null;
+            dirty = false;
+        }
+        return digestValue;
+    }
+
     @Override
     public Sha1Digest clone() {
+        return new Sha1Digest(cloneDigest(), this);
+    }
+
+    private MessageDigest cloneDigest() {
         try {
-            return new Sha1Digest((MessageDigest) digest.clone());
+            return (MessageDigest) digest.clone();
         } catch (CloneNotSupportedException cnse) {
             throw new RuntimeException("Couldn't make digest of partial content");
         }
     }
+
+    private static class Checkpoint {
+        private MessageDigest state;
+        private DigestValue value;
+    }
 }
@@ -0,0 +1,75 @@
+package no.nb.nna.veidemann.commons.db;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class FutureOptionalTest {
+    @Test
+    public void emptyUntil() {
+        Clock clock = Clock.fixed(Instant.parse("2018-06-18T12:00:00Z"), ZoneOffset.UTC);
+
+        OffsetDateTime when = OffsetDateTime.parse("2018-06-18T14:00:01+02:00");
+        FutureOptional<String> f1 = FutureOptional.emptyUntil(when);
+        assertThat(f1.isMaybeInFuture()).isTrue();
+        assertThat(f1.isEmpty()).isFalse();
+        assertThat(f1.getWhen()).isSameAs(when);
+        assertThat(f1.getDelayMs(clock)).isEqualTo(1000L);
+        assertThat(f1.getWhenEpochMilli()).isEqualTo(when.toInstant().toEpochMilli());
+        OffsetDateTime beforeEpoch = OffsetDateTime.parse("1969-12-31T23:59:59.250+02:00");
+        assertThat(FutureOptional.emptyUntil(beforeEpoch).getWhenEpochMilli())
+                .isEqualTo(beforeEpoch.toInstant().toEpochMilli());
+
+        FutureOptional<String> f2 = FutureOptional.emptyUntilEpochMilli(when.toInstant().toEpochMilli());
+        assertThat(f2.isMaybeInFuture()).isTrue();
+        assertThat(f2.getWhenEpochMilli()).isEqualTo(f1.getWhenEpochMilli());
+        assertThat(f2.getWhen()).isEqualTo(OffsetDateTime.parse("2018-06-18T12:00:01Z"));
+        assertThat(f2.getDelayMs(clock)).isEqualTo(1000L);
+        assertThat(f2).hasToString("Optional.futureTime[2018-06-18T12:00:01Z]");
+
+        // Passed times give zero delay
+        assertThat(FutureOptional.emptyUntilEpochMilli(0L).getDelayMs(clock)).isEqualTo(0L);
+
+        assertThat(FutureOptional.empty().isEmpty()).isTrue();
+        FutureOptional<String> noTime = FutureOptional.emptyUntil(null);
+        assertThat(noTime.isEmpty()).isTrue();
+        assertThat(noTime.isMaybeInFuture()).isFalse();
+        assertThatExceptionOfType(NoSuchElementException.class).isThrownBy(noTime::getWhen);
+        assertThatExceptionOfType(NoSuchElementException.class).isThrownBy(() -> FutureOptional.of("a").getDelayMs());
+    }
+
+    @Test
+    public void toCompletableFuture() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            FutureOptional<String> present = FutureOptional.of("a");
+            assertThat(present.toCompletableFuture(scheduler)).isCompletedWithValue(present);
+
+            long start = System.currentTimeMillis();
+            FutureOptional<String> f = FutureOptional.emptyUntilEpochMilli(start + 100);
+            CompletableFuture<FutureOptional<String>> future = f.toCompletableFuture(scheduler);
+            assertThat(future).isNotDone();
+            assertThat(future.get(5, TimeUnit.SECONDS)).isSameAs(f);
+            assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(start + 100);
+
+            CountDownLatch ready = new CountDownLatch(2);
+            FutureOptional.emptyUntilEpochMilli(System.currentTimeMillis() + 50).whenReady(scheduler, ready::countDown);
+            FutureOptional.empty().whenReady(scheduler, ready::countDown);
+            assertThat(ready.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class AsyncDigestTest {
+    @Test
+    public void update() throws Exception {
+        AsyncDigest d = new AsyncDigest(2);
+        d.update(ByteString.copyFromUtf8("fo"));
+        d.update(ByteString.EMPTY);
+        d.update(ByteBuffer.wrap("o".getBytes()));
+        d.update((byte) '\r', (byte) '\n');
+        assertThat(d.complete().get(5, TimeUnit.SECONDS)).isEqualTo("sha1:855426068ee8939df6bce2c2c4b1e7346532a133");
+        assertThat(d.getResult()).isCompleted();
+
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> d.update((byte) 'x'));
+    }
+
+    @Test
+    public void manyChunks() throws Exception {
+        Sha1Digest expected = new Sha1Digest();
+        AsyncDigest d = new AsyncDigest(4);
+        for (int i = 0; i < 10000; i++) {
+            ByteString chunk = ByteString.copyFromUtf8("chunk" + i);
+            expected.update(chunk);
+            d.update(chunk);
+        }
+        assertThat(d.complete().get(5, TimeUnit.SECONDS)).isEqualTo(expected.getPrefixedDigestString());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        AsyncDigest d = new AsyncDigest(1);
+        d.update(ByteString.copyFromUtf8("foo"));
+        d.cancel();
+        assertThat(d.getResult()).isCancelled();
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> d.update((byte) 'x'));
+        assertThat(d.complete()).isCancelled();
+    }
+
+    @Test
+    public void workerFailure() throws Exception {
+        AsyncDigest d = new AsyncDigest(1, r -> {
+            Thread t = new Thread(r);
+            t.start();
+            t.interrupt();
+        });
+        assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> d.getResult().get(5, TimeUnit.SECONDS))
+                .withCauseInstanceOf(InterruptedException.class);
+    }
+}
@@ -0,0 +1,42 @@
+package no.nb.nna.veidemann.commons.util;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class CachedClockTest {
+    @Test
+    public void millis() throws InterruptedException {
+        try (CachedClock clock = CachedClock.create(Duration.ofMillis(1))) {
+            // Read both clocks before assertThat, loading the assertion classes takes time on a cold JVM
+            long now = System.currentTimeMillis();
+            long start = clock.millis();
+            assertThat(start).isCloseTo(now, within(100L));
+            assertThat(clock.instant().toEpochMilli()).isGreaterThanOrEqualTo(start);
+            assertThat(clock.getZone()).isEqualTo(ZoneOffset.UTC);
+
+            Thread.sleep(50);
+            assertThat(clock.millis()).isGreaterThan(start);
+
+            ZoneId oslo = ZoneId.of("Europe/Oslo");
+            assertThat(clock.withZone(oslo).getZone()).isEqualTo(oslo);
+            assertThat(clock.withZone(ZoneOffset.UTC)).isSameAs(clock);
+
+            clock.close();
+            Thread.sleep(20);
+            long stopped = clock.millis();
+            Thread.sleep(50);
+            assertThat(clock.millis()).isEqualTo(stopped);
+        }
+
+        long now = System.currentTimeMillis();
+        assertThat(CachedClock.getDefault().millis()).isCloseTo(now, within(100L));
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> CachedClock.getDefault().close());
+    }
+}
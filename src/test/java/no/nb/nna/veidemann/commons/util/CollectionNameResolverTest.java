@@ -0,0 +1,116 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.util.Timestamps;
+import no.nb.nna.veidemann.api.config.v1.Collection.RotationPolicy;
+import no.nb.nna.veidemann.api.config.v1.Collection.SubCollectionType;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectionNameResolverTest {
+
+    @Test
+    public void getCollectionName() {
+        MutableClock clock = new MutableClock(Instant.parse("2018-06-18T12:38:16.667Z"));
+        CollectionNameResolver resolver = new CollectionNameResolver(clock);
+
+        ConfigObject.Builder conf = ConfigObject.newBuilder().setId("c1");
+        conf.getMetaBuilder().setName("Test").setLastModified(Timestamps.fromMillis(1000L));
+        conf.getCollectionBuilder().setCollectionDedupPolicy(RotationPolicy.HOURLY);
+        conf.getCollectionBuilder().addSubCollectionsBuilder().setName("sc").setType(SubCollectionType.SCREENSHOT);
+        conf.getCollectionBuilder().addSubCollectionsBuilder().setName("sc2").setType(SubCollectionType.SCREENSHOT);
+        ConfigObject config = conf.build();
+
+        assertThat(resolver.getCollectionName(config, SubCollectionType.UNDEFINED)).isEqualTo("Test_2018061812");
+        assertThat(resolver.getCollectionName(config, SubCollectionType.SCREENSHOT)).isEqualTo("Test_2018061812_sc");
+
+        clock.set(Instant.parse("2018-06-18T12:59:59.999Z"));
+        assertThat(resolver.getCollectionName(config, SubCollectionType.DNS)).isEqualTo("Test_2018061812");
+        clock.set(Instant.parse("2018-06-18T13:00:00Z"));
+        assertThat(resolver.getCollectionName(config, SubCollectionType.DNS)).isEqualTo("Test_2018061813");
+
+        // A new version of the config is picked up immediately
+        conf.getMetaBuilder().setName("Renamed").setLastModified(Timestamps.fromMillis(2000L));
+        assertThat(resolver.getCollectionName(conf.build(), SubCollectionType.SCREENSHOT))
+                .isEqualTo("Renamed_2018061813_sc");
+    }
+
+    @Test
+    public void versionIsTakenFromLastModified() {
+        MutableClock clock = new MutableClock(Instant.parse("2018-06-18T12:38:16.667Z"));
+        CollectionNameResolver resolver = new CollectionNameResolver(clock);
+
+        ConfigObject.Builder conf = ConfigObject.newBuilder().setId("c1");
+        conf.getMetaBuilder().setName("Test").setLastModified(Timestamps.fromMillis(1000L));
+        conf.getCollectionBuilder().setCollectionDedupPolicy(RotationPolicy.HOURLY);
+        assertThat(resolver.getCollectionName(conf.build(), SubCollectionType.UNDEFINED)).isEqualTo("Test_2018061812");
+
+        // A change which didn't update last modified is not noticed until the entry is invalidated
+        conf.getMetaBuilder().setName("Renamed");
+        assertThat(resolver.getCollectionName(conf.build(), SubCollectionType.UNDEFINED)).isEqualTo("Test_2018061812");
+        resolver.invalidate("c1");
+        assertThat(resolver.getCollectionName(conf.build(), SubCollectionType.UNDEFINED))
+                .isEqualTo("Renamed_2018061812");
+
+        conf.getMetaBuilder().setName("Renamed again").setLastModified(Timestamps.fromMillis(1001L));
+        assertThat(resolver.getCollectionName(conf.build(), SubCollectionType.UNDEFINED))
+                .isEqualTo("Renamed again_2018061812");
+    }
+
+    @Test
+    public void followsRotationKeys() {
+        // Step across new year, where the week based years used in rotation keys don't follow the calendar
+        Instant start = Instant.parse("2018-12-20T00:30:00Z");
+        for (RotationPolicy policy : new RotationPolicy[]{RotationPolicy.HOURLY, RotationPolicy.DAILY,
+                RotationPolicy.MONTHLY, RotationPolicy.YEARLY, RotationPolicy.NONE}) {
+            MutableClock clock = new MutableClock(start);
+            CollectionNameResolver resolver = new CollectionNameResolver(clock);
+            ConfigObject.Builder conf = ConfigObject.newBuilder().setId("c1");
+            conf.getMetaBuilder().setName("Test");
+            conf.getCollectionBuilder().setCollectionDedupPolicy(policy);
+            ConfigObject config = conf.build();
+
+            for (int i = 0; i < 24 * 30; i++) {
+                clock.set(start.plus(Duration.ofHours(i)));
+                OffsetDateTime now = OffsetDateTime.ofInstant(clock.instant(), ZoneOffset.UTC);
+                assertThat(resolver.getCollectionName(config, SubCollectionType.UNDEFINED))
+                        .isEqualTo(CollectionNameGenerator.createBaseCollectionName(config, now));
+            }
+        }
+    }
+
+    static class MutableClock extends Clock {
+        private volatile Instant instant;
+
+        MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void set(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
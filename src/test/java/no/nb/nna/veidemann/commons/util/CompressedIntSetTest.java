@@ -0,0 +1,71 @@
+package no.nb.nna.veidemann.commons.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class CompressedIntSetTest {
+    @Test
+    public void encoding() {
+        CompressedIntSet set = CompressedIntSet.of(300, 0, 5, 5, 1000000, Integer.MAX_VALUE);
+        assertThat(set.toArray()).containsExactly(0, 5, 300, 1000000, Integer.MAX_VALUE);
+        assertThat(set.size()).isEqualTo(5);
+        assertThat(set.contains(300)).isTrue();
+        assertThat(set.contains(301)).isFalse();
+        assertThat(set.contains(Integer.MAX_VALUE)).isTrue();
+
+        // Consecutive ids take one byte each
+        assertThat(CompressedIntSet.of(1, 2, 3, 4).getEncodedSize()).isEqualTo(4);
+
+        assertThat(CompressedIntSet.of()).isSameAs(CompressedIntSet.EMPTY);
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> CompressedIntSet.of(-1));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new CompressedIntSet.Builder().add(2).add(1));
+    }
+
+    @Test
+    public void setOperations() {
+        Random rnd = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            TreeSet<Integer> a = randomSet(rnd);
+            TreeSet<Integer> b = randomSet(rnd);
+            CompressedIntSet ca = toSet(a);
+            CompressedIntSet cb = toSet(b);
+
+            TreeSet<Integer> and = new TreeSet<>(a);
+            and.retainAll(b);
+            TreeSet<Integer> or = new TreeSet<>(a);
+            or.addAll(b);
+            TreeSet<Integer> andNot = new TreeSet<>(a);
+            andNot.removeAll(b);
+
+            assertThat(ca.and(cb)).isEqualTo(toSet(and));
+            assertThat(ca.or(cb)).isEqualTo(toSet(or));
+            assertThat(ca.andNot(cb)).isEqualTo(toSet(andNot));
+        }
+
+        CompressedIntSet set = CompressedIntSet.of(1, 3);
+        assertThat(set.with(2).toArray()).containsExactly(1, 2, 3);
+        assertThat(set.with(3)).isSameAs(set);
+        assertThat(set.without(1).toArray()).containsExactly(3);
+        assertThat(set.without(2)).isSameAs(set);
+    }
+
+    private TreeSet<Integer> randomSet(Random rnd) {
+        TreeSet<Integer> set = new TreeSet<>();
+        int n = rnd.nextInt(50);
+        int bound = rnd.nextBoolean() ? 100 : 100000;
+        for (int i = 0; i < n; i++) {
+            set.add(rnd.nextInt(bound));
+        }
+        return set;
+    }
+
+    private CompressedIntSet toSet(TreeSet<Integer> values) {
+        return CompressedIntSet.of(values.stream().mapToInt(Integer::intValue).toArray());
+    }
+}
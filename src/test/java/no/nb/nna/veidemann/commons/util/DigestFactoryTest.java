@@ -0,0 +1,43 @@
+package no.nb.nna.veidemann.commons.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DigestFactoryTest {
+    @Test
+    public void sha1() throws Exception {
+        assertThat(DigestFactory.sha1Hex("")).isEqualTo("da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        assertThat(DigestFactory.sha1Hex("foo")).isEqualTo("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+
+        StringBuilder longValue = new StringBuilder("http://www.example.com/");
+        for (int i = 0; i < 200; i++) {
+            longValue.append("æøå😀");
+        }
+        String[] values = {"http://www.example.com/æøå", "€😀", "a\uD800b", "\uDC00", longValue.toString()};
+        for (String value : values) {
+            byte[] expected = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            assertThat(DigestFactory.sha1(value)).isEqualTo(DigestValue.of(expected));
+            assertThat(DigestFactory.sha1(value.getBytes(StandardCharsets.UTF_8))).isEqualTo(DigestValue.of(expected));
+            assertThat(DigestFactory.sha1Hex(value)).isEqualTo(DigestValue.of(expected).toHex());
+        }
+    }
+
+    @Test
+    public void fixedWidth() throws Exception {
+        String value = findValueWithLeadingZero();
+        assertThat(DigestFactory.sha1Hex(value)).hasSize(40).startsWith("0");
+    }
+
+    private String findValueWithLeadingZero() {
+        for (int i = 0; ; i++) {
+            String value = "v" + i;
+            if ((DigestFactory.sha1(value).getBytes()[0] & 0xf0) == 0) {
+                return value;
+            }
+        }
+    }
+}
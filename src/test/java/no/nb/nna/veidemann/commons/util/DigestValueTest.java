@@ -0,0 +1,49 @@
+package no.nb.nna.veidemann.commons.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DigestValueTest {
+    @Test
+    public void toHex() {
+        DigestValue v = DigestValue.of(new byte[]{0x00, 0x0f, (byte) 0xa0, (byte) 0xff});
+        assertThat(v.toHex()).isEqualTo("000fa0ff");
+        assertThat(v.appendHex(new StringBuilder("x:")).toString()).isEqualTo("x:000fa0ff");
+
+        char[] buf = new char[10];
+        assertThat(v.writeHex(buf, 2)).isEqualTo(8);
+        assertThat(new String(buf, 2, 8)).isEqualTo("000fa0ff");
+    }
+
+    @Test
+    public void toBase32() {
+        // Test vectors from RFC 4648
+        assertThat(base32("")).isEqualTo("");
+        assertThat(base32("f")).isEqualTo("MY======");
+        assertThat(base32("fo")).isEqualTo("MZXQ====");
+        assertThat(base32("foo")).isEqualTo("MZXW6===");
+        assertThat(base32("foob")).isEqualTo("MZXW6YQ=");
+        assertThat(base32("fooba")).isEqualTo("MZXW6YTB");
+        assertThat(base32("foobar")).isEqualTo("MZXW6YTBOI======");
+    }
+
+    @Test
+    public void sha1DigestValue() {
+        Sha1Digest d = new Sha1Digest();
+        assertThat(d.getDigestValue().length()).isEqualTo(20);
+        assertThat(d.getBase32DigestString()).isEqualTo("3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ");
+
+        DigestValue empty = d.getDigestValue();
+        d.update((byte) 'f', (byte) 'o', (byte) 'o');
+        assertThat(d.getRawDigestString()).isEqualTo("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        assertThat(d.getDigestValue()).isNotEqualTo(empty);
+        assertThat(empty.toHex()).isEqualTo("da39a3ee5e6b4b0d3255bfef95601890afd80709");
+    }
+
+    private String base32(String value) {
+        return DigestValue.of(value.getBytes(StandardCharsets.US_ASCII)).toBase32();
+    }
+}
@@ -0,0 +1,101 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ListRequest;
+import no.nb.nna.veidemann.commons.db.ChangeFeed;
+import no.nb.nna.veidemann.commons.db.ConfigAdapter;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildLabel;
+import static no.nb.nna.veidemann.commons.util.LabelSelectorTest.configObject;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InvertedLabelIndexTest {
+    @Test
+    public void select() throws Exception {
+        ConfigAdapter configAdapter = mock(ConfigAdapter.class);
+        when(configAdapter.listConfigObjects(any(ListRequest.class))).thenReturn(changeFeed(
+                configObject("1", buildLabel("type", "news"), buildLabel("lang", "nb")),
+                configObject("2", buildLabel("type", "news"), buildLabel("lang", "nn")),
+                configObject("3", buildLabel("type", "blog"))));
+
+        InvertedLabelIndex index = InvertedLabelIndex.load(configAdapter, ListRequest.getDefaultInstance());
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(select(index, "type:news")).containsExactly("1", "2");
+        assertThat(select(index, "lang:*")).containsExactly("1", "2");
+        assertThat(select(index, "!lang:*")).containsExactly("3");
+        assertThat(select(index, "type:news,!lang:nn")).containsExactly("1");
+        assertThat(select(index, "")).containsExactly("1", "2", "3");
+        assertThat(select(index, "foo:bar")).isEmpty();
+        assertThat(index.count(LabelSelector.compile("type:*"))).isEqualTo(3);
+
+        // Replace labels
+        index.update(configObject("2", buildLabel("type", "blog")));
+        assertThat(select(index, "type:news")).containsExactly("1");
+        assertThat(select(index, "type:blog")).containsExactly("2", "3");
+        assertThat(select(index, "lang:*")).containsExactly("1");
+
+        index.update(configObject("4", buildLabel("lang", "nb")));
+        assertThat(select(index, "lang:nb")).containsExactly("1", "4");
+
+        assertThat(index.remove("1")).isTrue();
+        assertThat(index.remove("1")).isFalse();
+        assertThat(select(index, "lang:nb")).containsExactly("4");
+        assertThat(select(index, "")).containsExactly("2", "3", "4");
+        assertThat(index.get("1")).isNotPresent();
+        assertThat(index.get("4")).isPresent();
+    }
+
+    @Test
+    public void follow() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        ChangeFeed<ConfigObject> feed = new ChangeFeed<ConfigObject>() {
+            @Override
+            public Stream<ConfigObject> stream() {
+                return Stream.of(
+                        configObject("1", buildLabel("type", "news")),
+                        configObject("2", buildLabel("type", "news")),
+                        configObject("1", buildLabel("type", "blog")));
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+
+        InvertedLabelIndex index = new InvertedLabelIndex();
+        index.follow(feed, Runnable::run);
+        assertThat(select(index, "type:news")).containsExactly("2");
+        assertThat(select(index, "type:blog")).containsExactly("1");
+
+        index.close();
+        assertThat(closed).isTrue();
+    }
+
+    private List<String> select(InvertedLabelIndex index, String selector) {
+        return index.select(LabelSelector.compile(selector)).stream().map(ConfigObject::getId)
+                .collect(Collectors.toList());
+    }
+
+    private ChangeFeed<ConfigObject> changeFeed(ConfigObject... objects) {
+        return new ChangeFeed<ConfigObject>() {
+            @Override
+            public Stream<ConfigObject> stream() {
+                return Stream.of(objects);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,196 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.commons.util.Pool.Lease;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class KeyedPoolTest {
+
+    @Test
+    public void lease() throws InterruptedException, TimeoutException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        KeyedPool<String, String> pool = KeyedPool.<String, String>newBuilder(k -> k + idx.getAndIncrement())
+                .withMaxPerKey(2)
+                .withMaxTotal(3)
+                .build();
+
+        Lease<String> a1 = pool.lease("a");
+        Lease<String> a2 = pool.lease("a");
+        assertThat(a1.getObject()).isEqualTo("a0");
+        assertThat(a2.getObject()).isEqualTo("a1");
+
+        // Check the limit per key
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease("a", 100, TimeUnit.MILLISECONDS); });
+
+        // Check the total limit
+        Lease<String> b1 = pool.lease("b");
+        assertThat(b1.getObject()).isEqualTo("b2");
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease("b", 100, TimeUnit.MILLISECONDS); });
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease("c", 100, TimeUnit.MILLISECONDS); });
+
+        // Returning a lease for one key makes room for another key. No objects were created by the failed attempts
+        a1.close();
+        Lease<String> c1 = pool.lease("c", 100, TimeUnit.MILLISECONDS);
+        assertThat(c1.getObject()).isEqualTo("c3");
+        assertThat(idx.get()).isEqualTo(4);
+
+        // Failed attempts do not leak objects for the key
+        assertThat(pool.getStats("b").getLeased()).isEqualTo(1);
+        assertThat(pool.getKeyCount()).isEqualTo(3);
+
+        a2.close();
+        b1.close();
+        c1.close();
+        pool.close();
+    }
+
+    @Test
+    public void objectsAreOnlyCreatedWithinTotalLimit() throws Exception {
+        AtomicInteger created = new AtomicInteger(0);
+        CountDownLatch factoryStarted = new CountDownLatch(1);
+        CountDownLatch factoryDone = new CountDownLatch(1);
+
+        KeyedPool<String, String> pool = KeyedPool.<String, String>newBuilder(k -> {
+            created.incrementAndGet();
+            factoryStarted.countDown();
+            try {
+                factoryDone.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return k;
+        })
+                .withMaxPerKey(2)
+                .withMaxTotal(1)
+                .build();
+
+        // An object being created counts towards the total limit
+        Future<Lease<String>> leasing = ForkJoinPool.commonPool().submit(() -> pool.lease("a"));
+        assertThat(factoryStarted.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease("b", 100, TimeUnit.MILLISECONDS); });
+        assertThat(created.get()).isEqualTo(1);
+
+        factoryDone.countDown();
+        leasing.get(1, TimeUnit.SECONDS).close();
+        try (Lease<String> b = pool.lease("b", 100, TimeUnit.MILLISECONDS)) {
+            assertThat(b.getObject()).isEqualTo("b");
+        }
+        assertThat(created.get()).isEqualTo(2);
+        pool.close();
+    }
+
+    @Test
+    public void requestsWaitingForBusyKeyDoNotBlockOtherKeys() throws Exception {
+        KeyedPool<String, String> pool = KeyedPool.<String, String>newBuilder(k -> k)
+                .withMaxPerKey(1)
+                .withMaxTotal(2)
+                .build();
+
+        Lease<String> a = pool.lease("a");
+        Future<Lease<String>> waiting = ForkJoinPool.commonPool().submit(() -> pool.lease("a"));
+        Thread.sleep(100);
+        assertThat(waiting.isDone()).isFalse();
+
+        // Only one of two objects is in use, so another key is served right away
+        try (Lease<String> b = pool.lease("b", 500, TimeUnit.MILLISECONDS)) {
+            assertThat(b.getObject()).isEqualTo("b");
+        }
+
+        a.close();
+        waiting.get(1, TimeUnit.SECONDS).close();
+        pool.close();
+    }
+
+    @Test
+    public void idleObjectsCountTowardsTotalLimit() throws Exception {
+        AtomicInteger created = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        KeyedPool<String, String> pool = KeyedPool.<String, String>newBuilder(k -> k + created.getAndIncrement())
+                .withMaxPerKey(2)
+                .withMaxTotal(2)
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .build();
+
+        pool.lease("a").close();
+        pool.lease("b").close();
+        assertThat(pool.getStats("a").getLiveObjects() + pool.getStats("b").getLiveObjects()).isEqualTo(2);
+
+        // The total limit is reached, so an idle object of another key is evicted to make room
+        try (Lease<String> c = pool.lease("c", 100, TimeUnit.MILLISECONDS)) {
+            assertThat(c.getObject()).isEqualTo("c2");
+            assertThat(finalized.get()).isEqualTo(1);
+            assertThat(pool.getStats("a").getLiveObjects() + pool.getStats("b").getLiveObjects()).isEqualTo(1);
+
+            // Leasing the idle object which is left doesn't create anything. Then there is no room for more objects
+            String idleKey = pool.getStats("a").getLiveObjects() == 1 ? "a" : "b";
+            Lease<String> idle = pool.lease(idleKey, 100, TimeUnit.MILLISECONDS);
+            assertThatExceptionOfType(TimeoutException.class)
+                    .isThrownBy(() -> { pool.lease("d", 100, TimeUnit.MILLISECONDS); });
+            idle.close();
+        }
+        assertThat(created.get()).isEqualTo(3);
+
+        pool.close();
+        assertThat(finalized.get()).isEqualTo(created.get());
+    }
+
+    @Test
+    public void closeIdleKeys() throws InterruptedException {
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        KeyedPool<String, String> pool = KeyedPool.<String, String>newBuilder(k -> k)
+                .withMaxPerKey(2)
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withKeyIdleTimeout(Duration.ofHours(1))
+                .build();
+
+        pool.lease("a").close();
+        Lease<String> b = pool.lease("b");
+        assertThat(pool.getKeyCount()).isEqualTo(2);
+
+        // Nothing is idle yet
+        pool.closeIdleKeys();
+        assertThat(pool.getKeyCount()).isEqualTo(2);
+
+        KeyedPool<String, String> pool2 = KeyedPool.<String, String>newBuilder(k -> k)
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withKeyIdleTimeout(Duration.ofMillis(10))
+                .build();
+        pool2.lease("a").close();
+        Lease<String> b2 = pool2.lease("b");
+        Thread.sleep(50);
+
+        // Keys with leased objects are kept
+        pool2.closeIdleKeys();
+        assertThat(pool2.getKeyCount()).isEqualTo(1);
+        assertThat(pool2.getStats("a")).isNull();
+        assertThat(finalized.get()).isEqualTo(1);
+
+        // A closed key is recreated on demand
+        try (Lease<String> a = pool2.lease("a")) {
+            assertThat(a.getObject()).isEqualTo("a");
+        }
+
+        b.close();
+        b2.close();
+        pool.close();
+        pool2.close();
+        assertThat(finalized.get()).isEqualTo(5);
+    }
+}
@@ -0,0 +1,31 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.Meta;
+import org.junit.Test;
+
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildLabel;
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildMeta;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LabelIndexTest {
+    @Test
+    public void lookup() {
+        Meta meta = buildMeta("name", "descr",
+                buildLabel("aa", "bb"), buildLabel("cc", "dd"), buildLabel("aa", "ee"));
+        LabelIndex index = LabelIndex.of(meta);
+
+        assertThat(index.getKeyCount()).isEqualTo(2);
+        assertThat(index.hasKey("aa")).isTrue();
+        assertThat(index.hasKey("bb")).isFalse();
+        assertThat(index.hasLabel("aa", "ee")).isTrue();
+        assertThat(index.hasLabel("cc", "ee")).isFalse();
+        assertThat(index.hasLabel(buildLabel("aa", "bb"), buildLabel("cc", "dd"))).isTrue();
+        assertThat(index.hasLabel(buildLabel("aa", "bb"), buildLabel("ee", "ff"))).isFalse();
+        assertThat(index.hasLabel()).isFalse();
+
+        assertThat(index.getFirstValue("aa")).contains("bb");
+        assertThat(index.getFirstValue("bb")).isNotPresent();
+        assertThat(index.getValues("aa")).containsExactly("bb", "ee");
+        assertThat(index.getValues("bb")).isEmpty();
+    }
+}
@@ -0,0 +1,60 @@
+package no.nb.nna.veidemann.commons.util;
+
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.Label;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildLabel;
+import static no.nb.nna.veidemann.commons.util.ApiTools.buildMeta;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class LabelSelectorTest {
+    private final ConfigObject o1 = configObject("1", buildLabel("type", "news"), buildLabel("lang", "nb"));
+    private final ConfigObject o2 = configObject("2", buildLabel("type", "news"), buildLabel("lang", "nn"));
+    private final ConfigObject o3 = configObject("3", buildLabel("type", "blog"));
+
+    @Test
+    public void compile() {
+        assertThat(select("type:news")).containsExactly("1", "2");
+        assertThat(select("lang:*")).containsExactly("1", "2");
+        assertThat(select("!lang:*")).containsExactly("3");
+        assertThat(select("type:news, !lang:nn")).containsExactly("1");
+        assertThat(select("type:news,lang:nn")).containsExactly("2");
+        assertThat(select("")).containsExactly("1", "2", "3");
+        assertThat(select("foo:bar")).isEmpty();
+
+        // Values may contain colon
+        ConfigObject o4 = configObject("4", buildLabel("url", "http://example.com"));
+        assertThat(LabelSelector.compile("url:http://example.com").test(o4)).isTrue();
+
+        assertThat(LabelSelector.compile(Arrays.asList("type:news", "!lang:nn"))).hasToString("type:news,!lang:nn");
+        assertThat(LabelSelector.compile(Collections.emptyList()).test(o3)).isTrue();
+
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LabelSelector.compile("type"));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LabelSelector.compile(":news"));
+    }
+
+    @Test
+    public void matchesIndex() {
+        LabelSelector selector = LabelSelector.compile("type:news,!lang:nn");
+        assertThat(selector.matches(LabelIndex.of(o1.getMeta()))).isTrue();
+        assertThat(selector.matches(LabelIndex.of(o2.getMeta()))).isFalse();
+        assertThat(selector.matches(LabelIndex.of(o3.getMeta()))).isFalse();
+    }
+
+    private List<String> select(String expression) {
+        LabelSelector selector = LabelSelector.compile(expression);
+        return Stream.of(o1, o2, o3).filter(selector).map(ConfigObject::getId).collect(Collectors.toList());
+    }
+
+    static ConfigObject configObject(String id, Label... labels) {
+        return ConfigObject.newBuilder().setId(id).setMeta(buildMeta("name" + id, "", labels)).build();
+    }
+}
@@ -0,0 +1,451 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import no.nb.nna.veidemann.api.config.v1.Label;
+import no.nb.nna.veidemann.commons.util.ApiTools.DescriptorPager;
+import no.nb.nna.veidemann.commons.util.ApiTools.ListReplyWalker;
+import no.nb.nna.veidemann.commons.util.ApiTools.PageWalker;
+import no.nb.nna.veidemann.commons.util.ApiTools.TypedListReplyWalker;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL;
+import static com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+import static com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32;
+import static com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/**
+ * Tests for the paging of {@link ApiTools.ListReplyWalker} and {@link ApiTools.TypedListReplyWalker}.
+ * <p>
+ * The request and reply messages are built at runtime since no list request in the api has both the page and the
+ * page_size field.
+ */
+public class ListReplyWalkerTest {
+    private static final Descriptor REQUEST;
+    private static final Descriptor REPLY;
+    private static final FieldDescriptor PAGE;
+    private static final FieldDescriptor PAGE_SIZE;
+    private static final FieldDescriptor VALUE;
+
+    static {
+        FileDescriptorProto proto = FileDescriptorProto.newBuilder()
+                .setName("list_reply_walker_test.proto")
+                .setPackage("veidemann.test")
+                .addMessageType(DescriptorProto.newBuilder().setName("PagedRequest")
+                        .addField(field("page", 1, TYPE_INT32))
+                        .addField(field("page_size", 2, TYPE_INT32)))
+                .addMessageType(DescriptorProto.newBuilder().setName("PagedReply")
+                        .addField(field("value", 1, TYPE_STRING).setLabel(LABEL_REPEATED)))
+                .build();
+        try {
+            FileDescriptor file = FileDescriptor.buildFrom(proto, new FileDescriptor[0]);
+            REQUEST = file.findMessageTypeByName("PagedRequest");
+            REPLY = file.findMessageTypeByName("PagedReply");
+        } catch (DescriptorValidationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        PAGE = REQUEST.findFieldByName("page");
+        PAGE_SIZE = REQUEST.findFieldByName("page_size");
+        VALUE = REPLY.findFieldByName("value");
+    }
+
+    private final TypedListReplyWalker<DynamicMessage.Builder, DynamicMessage, DynamicMessage, String> walker =
+            new TypedListReplyWalker<>((b, p) -> b.setField(PAGE, p), b -> (Integer) b.getField(PAGE_SIZE),
+                    (b, s) -> b.setField(PAGE_SIZE, s), DynamicMessage.Builder::build, ListReplyWalkerTest::values);
+
+    @Test
+    public void walk() throws Exception {
+        PagedService service = new PagedService(5);
+        List<String> result = new ArrayList<>();
+
+        walker.walk(request(2), service::fetch, result::add);
+
+        assertThat(result).containsExactly("v0", "v1", "v2", "v3", "v4");
+        assertThat(service.requestedPages).containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void walkWithPrefetchKeepsPageOrder() throws Exception {
+        PagedService service = new PagedService(25);
+        service.slowPages.add(0);
+        service.slowPages.add(3);
+        List<String> result = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            walker.walk(request(2), service::fetch, result::add, 3, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(result).containsExactly(expectedValues(0, 25));
+    }
+
+    @Test
+    public void walkStopsAtFirstEmptyPage() throws Exception {
+        PagedService service = new PagedService(10);
+        service.emptyPages.add(2);
+        List<String> result = new ArrayList<>();
+
+        walker.walk(request(2), service::fetch, result::add);
+        assertThat(result).containsExactly("v0", "v1", "v2", "v3");
+
+        result.clear();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            walker.walk(request(2), service::fetch, result::add, 2, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(result).containsExactly("v0", "v1", "v2", "v3");
+    }
+
+    @Test
+    public void walkWithPrefetchCancelsPagesPastTheEnd() throws Exception {
+        PagedService service = new PagedService(5);
+        HoldingExecutor executor = new HoldingExecutor(4);
+        List<String> result = new ArrayList<>();
+
+        // Page 3 is the first empty page. Pages 4, 5 and 6 are requested while consuming the first pages.
+        walker.walk(request(2), service::fetch, result::add, 3, executor);
+        assertThat(result).containsExactly(expectedValues(0, 5));
+        assertThat(executor.heldCount()).isEqualTo(3);
+
+        executor.runHeld();
+        assertThat(service.requestedPages).containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void walkPropagatesFetchFailure() throws Exception {
+        PagedService service = new PagedService(10);
+        service.failingPage = 1;
+
+        assertThatExceptionOfType(RuntimeException.class)
+                .isThrownBy(() -> walker.walk(request(2), service::fetch, v -> {
+                }))
+                .withMessage("Fetch func failed")
+                .withCauseInstanceOf(IOException.class);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertThatExceptionOfType(RuntimeException.class)
+                    .isThrownBy(() -> walker.walk(request(2), service::fetch, v -> {
+                    }, 2, executor))
+                    .withMessage("Fetch func failed")
+                    .withCauseInstanceOf(IOException.class);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void walkRequiresPrefetch() throws Exception {
+        PagedService service = new PagedService(10);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> walker.walk(request(2), service::fetch, v -> {
+                    }, 0, executor));
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(service.fetchCount.get()).isZero();
+    }
+
+    @Test
+    public void streamStopsFetchingWhenSatisfied() throws Exception {
+        PagedService service = new PagedService(10);
+
+        assertThat(walker.stream(request(2), service::fetch).findFirst()).contains("v0");
+        assertThat(service.fetchCount.get()).isEqualTo(1);
+
+        service.fetchCount.set(0);
+        assertThat(walker.stream(request(2), service::fetch).limit(2)).containsExactly("v0", "v1");
+        assertThat(service.fetchCount.get()).isEqualTo(1);
+
+        service.fetchCount.set(0);
+        assertThat(walker.stream(request(2), service::fetch).limit(3)).containsExactly("v0", "v1", "v2");
+        assertThat(service.fetchCount.get()).isEqualTo(2);
+
+        service.fetchCount.set(0);
+        assertThat(walker.stream(request(2), service::fetch)).containsExactly(expectedValues(0, 10));
+        assertThat(service.fetchCount.get()).isEqualTo(6);
+    }
+
+    @Test
+    public void streamKeepsFetchFailureAsCause() throws Exception {
+        PagedService service = new PagedService(10);
+        service.failingPage = 1;
+
+        assertThatExceptionOfType(RuntimeException.class)
+                .isThrownBy(() -> walker.stream(request(2), service::fetch).count())
+                .withMessage("Fetch func failed")
+                .withCauseInstanceOf(IOException.class);
+        assertThat(service.requestedPages).containsExactly(0, 1);
+    }
+
+    @Test
+    public void walkParallelOrdered() throws Exception {
+        PagedService service = new PagedService(25);
+        service.slowPages.add(0);
+
+        assertThat(walkParallel(service, 25, true)).containsExactly(expectedValues(0, 25));
+        assertThat(service.fetchCount.get()).isEqualTo(13);
+    }
+
+    @Test
+    public void walkParallelUnordered() throws Exception {
+        PagedService service = new PagedService(25);
+        service.slowPages.add(0);
+
+        assertThat(walkParallel(service, 25, false)).containsExactlyInAnyOrder(expectedValues(0, 25));
+        assertThat(service.fetchCount.get()).isEqualTo(13);
+    }
+
+    @Test
+    public void walkParallelContinuesPastTooLowCount() throws Exception {
+        PagedService service = new PagedService(25);
+        assertThat(walkParallel(service, 10, true)).containsExactly(expectedValues(0, 25));
+        assertThat(service.fetchCount.get()).isEqualTo(13);
+
+        service = new PagedService(25);
+        assertThat(walkParallel(service, 10, false)).containsExactlyInAnyOrder(expectedValues(0, 25));
+        assertThat(service.fetchCount.get()).isEqualTo(13);
+    }
+
+    @Test
+    public void walkParallelHandlesTooHighCount() throws Exception {
+        PagedService service = new PagedService(10);
+        assertThat(walkParallel(service, 30, true)).containsExactly(expectedValues(0, 10));
+        assertThat(service.fetchCount.get()).isBetween(6, 15);
+
+        service = new PagedService(10);
+        assertThat(walkParallel(service, 30, false)).containsExactlyInAnyOrder(expectedValues(0, 10));
+        assertThat(service.fetchCount.get()).isEqualTo(15);
+    }
+
+    @Test
+    public void walkParallelWithZeroCount() throws Exception {
+        for (boolean ordered : new boolean[]{true, false}) {
+            PagedService service = new PagedService(0);
+            assertThat(walkParallel(service, 0, ordered)).isEmpty();
+            assertThat(service.requestedPages).containsExactly(0);
+
+            // Elements added after counting are found by the sequential tail
+            service = new PagedService(5);
+            assertThat(walkParallel(service, 0, ordered)).containsExactly(expectedValues(0, 5));
+            assertThat(service.requestedPages).containsExactly(0, 1, 2);
+        }
+    }
+
+    @Test
+    public void walkParallelCancelsPendingFetchesOnFailure() throws Exception {
+        for (boolean ordered : new boolean[]{true, false}) {
+            PagedService service = new PagedService(25);
+            service.failingPage = 1;
+            HoldingExecutor executor = new HoldingExecutor(2);
+
+            assertThatExceptionOfType(RuntimeException.class)
+                    .isThrownBy(() -> walker.walkParallel(request(2), service::fetch, r -> 25L, v -> {
+                    }, 4, executor, ordered))
+                    .withMessage("Fetch func failed")
+                    .withCauseInstanceOf(IOException.class);
+
+            // Pages 2, 3 and 4 were requested, but not fetched before page 1 failed
+            assertThat(executor.heldCount()).isEqualTo(3);
+            executor.runHeld();
+            assertThat(service.requestedPages).containsExactly(0, 1);
+        }
+    }
+
+    @Test
+    public void typedWalkerAppliesDefaultPageSize() throws Exception {
+        PagedService service = new PagedService(250);
+        DynamicMessage.Builder request = DynamicMessage.newBuilder(REQUEST);
+        List<String> result = new ArrayList<>();
+
+        walker.walk(request, service::fetch, result::add);
+
+        assertThat(request.getField(PAGE_SIZE)).isEqualTo(100);
+        assertThat(service.requestedPageSizes).containsExactly(100);
+        assertThat(service.requestedPages).containsExactly(0, 1, 2, 3);
+        assertThat(result).containsExactly(expectedValues(0, 250));
+
+        String first = walker.stream(request(2), service::fetch).findFirst().get();
+        assertThat(first).isEqualTo("v0");
+    }
+
+    @Test
+    public void descriptorWalker() throws Exception {
+        PagedService service = new PagedService(250);
+        DynamicMessage.Builder request = DynamicMessage.newBuilder(REQUEST);
+        List<String> result = new ArrayList<>();
+
+        new PageWalker<DynamicMessage, Message, String>(new DescriptorPager<>(request), service::fetch)
+                .walk(result::add);
+
+        assertThat(request.getField(PAGE_SIZE)).isEqualTo(100);
+        assertThat(service.requestedPageSizes).containsExactly(100);
+        assertThat(result).containsExactly(expectedValues(0, 250));
+    }
+
+    @Test
+    public void descriptorWalkerRejectsNonPagingRequest() throws Exception {
+        // Repeated to check that the failed lookup is not cached as a paging request
+        for (int i = 0; i < 2; i++) {
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> new DescriptorPager<>(DynamicMessage.newBuilder(REPLY)))
+                    .withMessage("The request is not a paging list request");
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> new ListReplyWalker<Label, Label>().walk(Label.newBuilder(), r -> null, v -> {
+                    }))
+                    .withMessage("The request is not a paging list request");
+        }
+    }
+
+    @Test
+    public void descriptorWalkerRejectsReplyWithoutValues() throws Exception {
+        // The request has no value field, so echoing it makes a reply which is not a value list
+        for (int i = 0; i < 2; i++) {
+            PageWalker<DynamicMessage, Message, String> w = new PageWalker<>(new DescriptorPager<>(request(2)), r -> r);
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> w.walk(v -> {
+                    }))
+                    .withMessage("Fetch func returned a response which is not a value list");
+        }
+    }
+
+    private List<String> walkParallel(PagedService service, long count, boolean ordered) {
+        List<String> result = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            walker.walkParallel(request(2), service::fetch, r -> count, v -> {
+                assertThat(Thread.currentThread()).isSameAs(caller);
+                result.add(v);
+            }, 4, executor, ordered);
+        } finally {
+            executor.shutdown();
+        }
+        return result;
+    }
+
+    private static FieldDescriptorProto.Builder field(String name, int number, FieldDescriptorProto.Type type) {
+        return FieldDescriptorProto.newBuilder().setName(name).setNumber(number).setType(type).setLabel(LABEL_OPTIONAL);
+    }
+
+    private static DynamicMessage.Builder request(int pageSize) {
+        return DynamicMessage.newBuilder(REQUEST).setField(PAGE_SIZE, pageSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> values(DynamicMessage reply) {
+        return (List<String>) reply.getField(VALUE);
+    }
+
+    private static String[] expectedValues(int from, int to) {
+        String[] values = new String[to - from];
+        for (int i = from; i < to; i++) {
+            values[i - from] = "v" + i;
+        }
+        return values;
+    }
+
+    /**
+     * A list service with {@code total} values named v0, v1 and so on.
+     */
+    private static class PagedService {
+        private final int total;
+        final AtomicInteger fetchCount = new AtomicInteger();
+        final List<Integer> requestedPages = Collections.synchronizedList(new ArrayList<>());
+        final Set<Integer> requestedPageSizes = Collections.synchronizedSet(new HashSet<>());
+        final Set<Integer> emptyPages = new HashSet<>();
+        final Set<Integer> slowPages = new HashSet<>();
+        int failingPage = -1;
+
+        PagedService(int total) {
+            this.total = total;
+        }
+
+        DynamicMessage fetch(DynamicMessage request) throws Exception {
+            fetchCount.incrementAndGet();
+            int page = (Integer) request.getField(PAGE);
+            int pageSize = (Integer) request.getField(PAGE_SIZE);
+            requestedPages.add(page);
+            requestedPageSizes.add(pageSize);
+            if (slowPages.contains(page)) {
+                Thread.sleep(50);
+            }
+            if (page == failingPage) {
+                throw new IOException("Page " + page + " failed");
+            }
+
+            DynamicMessage.Builder reply = DynamicMessage.newBuilder(REPLY);
+            if (!emptyPages.contains(page)) {
+                for (int i = page * pageSize; i < Math.min(total, (page + 1) * pageSize); i++) {
+                    reply.addRepeatedField(VALUE, "v" + i);
+                }
+            }
+            return reply.build();
+        }
+    }
+
+    /**
+     * Executor running the first tasks on the calling thread and holding back the rest until asked to run them.
+     */
+    private static class HoldingExecutor implements Executor {
+        private final int runImmediately;
+        private final List<Runnable> held = new ArrayList<>();
+        private int submitted;
+
+        HoldingExecutor(int runImmediately) {
+            this.runImmediately = runImmediately;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (submitted++ >= runImmediately) {
+                    held.add(command);
+                    return;
+                }
+            }
+            command.run();
+        }
+
+        synchronized int heldCount() {
+            return held.size();
+        }
+
+        void runHeld() {
+            List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<>(held);
+                held.clear();
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package no.nb.nna.veidemann.commons.util;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class MultiDigestTest {
+    @Test
+    public void updateByteString() throws Exception {
+        ByteString v1 = ByteString.copyFromUtf8("fo");
+        ByteString v2 = ByteString.copyFromUtf8("o");
+        ByteString v3 = ByteString.copyFromUtf8("\r\n");
+
+        MultiDigest d = new MultiDigest("SHA-1", "SHA-256");
+        d.update(v1.concat(v2));
+        assertThat(d.getPrefixedDigestString("SHA-1")).isEqualTo("sha1:0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        assertThat(d.getPrefixedDigestString("sha256"))
+                .isEqualTo("sha256:2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae");
+
+        MultiDigest snapshot = d.clone();
+        d.update(v3);
+        assertThat(d.getRawDigestString("SHA-1")).isEqualTo("855426068ee8939df6bce2c2c4b1e7346532a133");
+        assertThat(snapshot.getRawDigestString("SHA-1")).isEqualTo("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        assertThat(d.getDigestValue("SHA-1"))
+                .isEqualTo(new Sha1Digest().update(v1.concat(v2).concat(v3)).getDigestValue());
+    }
+
+    @Test
+    public void updateByteBuffer() throws Exception {
+        ByteBuffer v1 = ByteBuffer.wrap("foo".getBytes());
+
+        MultiDigest d = new MultiDigest("SHA-1", "SHA-256");
+        d.update(v1);
+        assertThat(v1.hasRemaining()).isFalse();
+        assertThat(d).hasToString("sha1:0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33, "
+                + "sha256:2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae");
+    }
+
+    @Test
+    public void updateSpanningSeveralWindows() throws Exception {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        ByteString chunked = ByteString.copyFrom(data, 0, 40_000).concat(ByteString.copyFrom(data, 40_000, 60_000));
+        String expectedSha1 = new Sha1Digest().update(data).getDigestValue().toHex();
+        DigestValue expectedSha256 = DigestValue.wrap(MessageDigest.getInstance("SHA-256").digest(data));
+
+        MultiDigest fromBytes = new MultiDigest("SHA-1", "SHA-256").update(data);
+        MultiDigest fromByteString = new MultiDigest("SHA-1", "SHA-256").update(chunked);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 10, data.length - 20);
+        MultiDigest fromByteBuffer = new MultiDigest("SHA-1", "SHA-256")
+                .update(ByteBuffer.wrap(data, 0, 10))
+                .update(buffer)
+                .update(ByteBuffer.wrap(data, data.length - 10, 10));
+
+        for (MultiDigest d : new MultiDigest[]{fromBytes, fromByteString, fromByteBuffer}) {
+            assertThat(d.getRawDigestString("SHA-1")).isEqualTo(expectedSha1);
+            assertThat(d.getDigestValue("SHA-256")).isEqualTo(expectedSha256);
+        }
+        assertThat(buffer.position()).isEqualTo(data.length - 10);
+        assertThat(buffer.limit()).isEqualTo(data.length - 10);
+    }
+
+    @Test
+    public void unknownAlgorithm() throws Exception {
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new MultiDigest("foo"));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new MultiDigest("SHA-1", "sha1"));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new MultiDigest("SHA-1").getDigestValue("SHA-256"));
+    }
+}
@@ -3,12 +3,21 @@ package no.nb.nna.veidemann.commons.util;
 import no.nb.nna.veidemann.commons.util.Pool.Lease;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
@@ -59,8 +68,716 @@ public class PoolTest {
 
     }
 
+    @Test
+    public void leaseConcurrently() throws InterruptedException, ExecutionException {
+        AtomicInteger idx = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = new Pool<>(4, () -> new ExpensiveObject(idx.getAndIncrement()), null,
+                o -> finalized.incrementAndGet());
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            results.add(executor.submit(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    try (Lease<ExpensiveObject> l = pool.lease()) {
+                        // Check that no other thread is using the object
+                        assertThat(l.getObject().inUse.compareAndSet(false, true)).isTrue();
+                        Thread.yield();
+                        l.getObject().inUse.set(false);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : results) {
+            f.get();
+        }
+        executor.shutdown();
+
+        // Only the pool size number of objects should be created
+        assertThat(idx.get()).isEqualTo(4);
+
+        pool.close();
+        assertThat(finalized.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void closeLeaseTwice() throws InterruptedException, TimeoutException {
+        Pool<ExpensiveObject> pool = new Pool<>(1, () -> new ExpensiveObject(0), null, null);
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        l1.close();
+        l1.close();
+
+        // Closing twice should not free more than one slot
+        Lease<ExpensiveObject> l2 = pool.lease();
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease(100, TimeUnit.MILLISECONDS); });
+        l2.close();
+    }
+
+    @Test
+    public void evictIdleObjects() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withMaxSize(3)
+                .withMinIdle(1)
+                .withIdleTimeout(Duration.ofMillis(1))
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        Lease<ExpensiveObject> l3 = pool.lease();
+        l1.close();
+        l2.close();
+        Thread.sleep(10);
+
+        // Leased objects are never evicted and one idle object is kept alive
+        pool.evictExpired();
+        assertThat(finalized.get()).isEqualTo(1);
+
+        l3.close();
+        Thread.sleep(10);
+        pool.evictExpired();
+        assertThat(finalized.get()).isEqualTo(2);
+
+        // Evicted slots are refilled lazily
+        try (Lease<ExpensiveObject> l4 = pool.lease(); Lease<ExpensiveObject> l5 = pool.lease()) {
+            assertThat(l4.getObject().idx).isEqualTo(3);
+            assertThat(l5.getObject().idx).isEqualTo(4);
+        }
+
+        pool.close();
+        assertThat(finalized.get()).isEqualTo(5);
+    }
+
+    @Test
+    public void recycleObjectsAfterMaxLifetime() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(1)
+                .withMaxLifetime(Duration.ofMillis(200))
+                .build();
+
+        ExpensiveObject o1;
+        ExpensiveObject o2;
+        try (Lease<ExpensiveObject> l = pool.lease()) {
+            o1 = l.getObject();
+        }
+        try (Lease<ExpensiveObject> l = pool.lease()) {
+            o2 = l.getObject();
+        }
+        assertThat(o2).isSameAs(o1);
+
+        Thread.sleep(250);
+        try (Lease<ExpensiveObject> l = pool.lease()) {
+            assertThat(l.getObject()).isNotSameAs(o1);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void leaseAsync() throws InterruptedException, ExecutionException, TimeoutException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = new Pool<>(2, () -> new ExpensiveObject(idx.getAndIncrement()), null, null);
+
+        // New objects are created by a worker thread
+        CompletableFuture<Lease<ExpensiveObject>> f1 = pool.leaseAsync();
+        CompletableFuture<Lease<ExpensiveObject>> f2 = pool.leaseAsync();
+        ExpensiveObject o1 = f1.get(1, TimeUnit.SECONDS).getObject();
+        ExpensiveObject o2 = f2.get(1, TimeUnit.SECONDS).getObject();
+        assertThat(o1).isNotSameAs(o2);
+
+        // Pending leases are completed in FIFO order by returning leases
+        CompletableFuture<Lease<ExpensiveObject>> f3 = pool.leaseAsync();
+        CompletableFuture<Lease<ExpensiveObject>> f4 = pool.leaseAsync();
+        assertThat(f3).isNotDone();
+        assertThat(f4).isNotDone();
+
+        f2.get().close();
+        assertThat(f3).isCompleted();
+        assertThat(f3.get().getObject()).isSameAs(o2);
+        assertThat(f4).isNotDone();
+
+        f1.get().close();
+        assertThat(f4).isCompleted();
+        assertThat(f4.get().getObject()).isSameAs(o1);
+
+        // Timed out requests do not consume a slot
+        CompletableFuture<Lease<ExpensiveObject>> f5 = pool.leaseAsync(100, TimeUnit.MILLISECONDS);
+        assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> { f5.get(); })
+                .withCauseInstanceOf(TimeoutException.class);
+
+        f3.get().close();
+        f4.get().close();
+        try (Lease<ExpensiveObject> l1 = pool.lease(100, TimeUnit.MILLISECONDS);
+             Lease<ExpensiveObject> l2 = pool.lease(100, TimeUnit.MILLISECONDS)) {
+            assertThat(l1.getObject()).isNotSameAs(l2.getObject());
+
+            // Closing the pool fails pending requests
+            CompletableFuture<Lease<ExpensiveObject>> f6 = pool.leaseAsync();
+            ForkJoinPool.commonPool().submit(() -> {
+                pool.close();
+                return null;
+            });
+            assertThatExceptionOfType(ExecutionException.class)
+                    .isThrownBy(() -> { f6.get(); })
+                    .withCauseInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void leaseAsyncPreparesObjectsOnWorkerThread() throws Exception {
+        CountDownLatch verifierStarted = new CountDownLatch(1);
+        CountDownLatch verifierDone = new CountDownLatch(1);
+        List<Thread> verifierThreads = new CopyOnWriteArrayList<>();
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(0))
+                .withMaxSize(1)
+                .withVerifier(o -> {
+                    verifierThreads.add(Thread.currentThread());
+                    verifierStarted.countDown();
+                    try {
+                        return verifierDone.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                })
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        CompletableFuture<Lease<ExpensiveObject>> f = pool.leaseAsync();
+        assertThat(f).isNotDone();
+
+        // Returning the lease does not wait for the verifier
+        l1.close();
+        assertThat(verifierStarted.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(verifierThreads).doesNotContain(Thread.currentThread());
+        assertThat(f).isNotDone();
+
+        verifierDone.countDown();
+        try (Lease<ExpensiveObject> l2 = f.get(1, TimeUnit.SECONDS)) {
+            assertThat(l2.getObject().idx).isEqualTo(0);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void leaseStrategyLifo() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(3)
+                .withLeaseStrategy(Pool.LeaseStrategy.LIFO)
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        Lease<ExpensiveObject> l3 = pool.lease();
+        l1.close();
+        l3.close();
+
+        // The most recently returned object is leased first
+        Lease<ExpensiveObject> l4 = pool.lease();
+        assertThat(l4.getObject().idx).isEqualTo(2);
+        Lease<ExpensiveObject> l5 = pool.lease();
+        assertThat(l5.getObject().idx).isEqualTo(0);
+
+        l2.close();
+        l4.close();
+        l5.close();
+        pool.close();
+    }
+
+    @Test
+    public void leaseStrategyLifoPrefersLiveObjects() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(2)
+                .withMinIdle(1)
+                .withIdleTimeout(Duration.ofMillis(50))
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .withLeaseStrategy(Pool.LeaseStrategy.LIFO)
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        l1.close();
+        Thread.sleep(100);
+        l2.close();
+        pool.evictExpired();
+
+        // The evicted slot is not used while there is a live idle object
+        try (Lease<ExpensiveObject> l3 = pool.lease()) {
+            assertThat(l3.getObject().idx).isEqualTo(1);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void leaseStrategyThreadAffinity() throws InterruptedException, ExecutionException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(3)
+                .withLeaseStrategy(Pool.LeaseStrategy.THREAD_AFFINITY)
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        int lastUsed = l2.getObject().idx;
+        l1.close();
+        l2.close();
+
+        // The slot last used by this thread is preferred
+        try (Lease<ExpensiveObject> l3 = pool.lease()) {
+            assertThat(l3.getObject().idx).isEqualTo(lastUsed);
+
+            // Other threads fall back to scanning
+            Future<Integer> other = ForkJoinPool.commonPool().submit(() -> {
+                try (Lease<ExpensiveObject> l = pool.lease()) {
+                    return l.getObject().idx;
+                }
+            });
+            assertThat(other.get()).isNotEqualTo(lastUsed);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void warmUp() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(4)
+                .withWarmTarget(2)
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .build();
+
+        // Objects are created in the background right after the pool is built
+        long start = System.currentTimeMillis();
+        while (idx.get() < 2 && System.currentTimeMillis() - start < 1000) {
+            Thread.sleep(10);
+        }
+        assertThat(idx.get()).isEqualTo(2);
+
+        try (Lease<ExpensiveObject> l1 = pool.lease(); Lease<ExpensiveObject> l2 = pool.lease()) {
+            assertThat(idx.get()).isEqualTo(2);
+
+            // Leased objects count towards the warm target
+            pool.warmUp();
+            assertThat(idx.get()).isEqualTo(2);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void slowMaintenanceDoesNotDelayOtherPools() throws InterruptedException {
+        CountDownLatch slowFactoryStarted = new CountDownLatch(1);
+        CountDownLatch slowFactoryDone = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger(0);
+        AtomicInteger executed = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> slowPool = Pool.newBuilder(() -> {
+            slowFactoryStarted.countDown();
+            try {
+                slowFactoryDone.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ExpensiveObject(0);
+        })
+                .withWarmTarget(1)
+                .withMaintenanceInterval(Duration.ofMillis(10))
+                .build();
+        assertThat(slowFactoryStarted.await(1, TimeUnit.SECONDS)).isTrue();
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(created.incrementAndGet()))
+                .withWarmTarget(1)
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .withExecutor(r -> {
+                    executed.incrementAndGet();
+                    ForkJoinPool.commonPool().execute(r);
+                })
+                .build();
+
+        // The other pool is warmed up while the slow factory is still running
+        long start = System.currentTimeMillis();
+        while (created.get() < 1 && System.currentTimeMillis() - start < 1000) {
+            Thread.sleep(10);
+        }
+        assertThat(created.get()).isEqualTo(1);
+        assertThat(executed.get()).isEqualTo(1);
+
+        slowFactoryDone.countDown();
+        pool.close();
+        slowPool.close();
+    }
+
+    @Test
+    public void backgroundValidation() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+        AtomicInteger verified = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(2)
+                .withVerifier(o -> {
+                    verified.incrementAndGet();
+                    return o.idx != 0;
+                })
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withBackgroundValidation(true)
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        l1.close();
+        l2.close();
+
+        // Failing objects are replaced by the maintenance task
+        pool.validateIdle();
+        assertThat(verified.get()).isEqualTo(2);
+        assertThat(finalized.get()).isEqualTo(1);
+        assertThat(idx.get()).isEqualTo(3);
+
+        // Validated objects are leased without running the verifier again
+        try (Lease<ExpensiveObject> l3 = pool.lease(); Lease<ExpensiveObject> l4 = pool.lease()) {
+            assertThat(verified.get()).isEqualTo(2);
+            assertThat(l3.getObject().idx).isEqualTo(2);
+            assertThat(l4.getObject().idx).isEqualTo(1);
+        }
+
+        // Objects returned since the last validation are verified when leased
+        try (Lease<ExpensiveObject> l5 = pool.lease()) {
+            assertThat(verified.get()).isEqualTo(3);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void stats() throws InterruptedException, TimeoutException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(2)
+                .withVerifier(o -> o.idx != 0)
+                .build();
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.lease(10, TimeUnit.MILLISECONDS); });
+        l1.close();
+        l2.close();
+        pool.lease().close();
+
+        PoolStats stats = pool.getStats();
+        assertThat(stats.getMaxSize()).isEqualTo(2);
+        assertThat(stats.getLeased()).isEqualTo(0);
+        assertThat(stats.getPeakLeased()).isEqualTo(2);
+        assertThat(stats.getLiveObjects()).isEqualTo(2);
+        assertThat(stats.getLeaseCount()).isEqualTo(3);
+        assertThat(stats.getTimeoutCount()).isEqualTo(1);
+        assertThat(stats.getCreatedCount()).isEqualTo(3);
+        assertThat(stats.getValidatedCount()).isEqualTo(1);
+        assertThat(stats.getInvalidatedCount()).isEqualTo(1);
+        assertThat(stats.getFinalizedCount()).isEqualTo(1);
+        assertThat(stats.getLeaseWaitPercentile(50)).isLessThanOrEqualTo(stats.getLeaseWaitPercentile(100));
+        assertThat(stats.getLeaseWaitPercentile(100)).isEqualTo(stats.getMaxLeaseWait());
+
+        try (Lease<ExpensiveObject> l = pool.lease()) {
+            assertThat(pool.getStats().getLeased()).isEqualTo(1);
+            assertThat(pool.getStats().getUtilization()).isEqualTo(0.5);
+        }
+        pool.close();
+        assertThat(pool.getStats().getFinalizedCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void statsSeparateWaitFromPreparation() throws InterruptedException {
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ExpensiveObject(0);
+        }).withMaxSize(2).build();
+
+        // A slow factory is not counted as waiting for a free slot
+        pool.lease().close();
+        PoolStats stats = pool.getStats();
+        assertThat(stats.getMaxLeasePrepare()).isGreaterThanOrEqualTo(Duration.ofMillis(50));
+        assertThat(stats.getLeasePreparePercentile(100)).isEqualTo(stats.getMaxLeasePrepare());
+        assertThat(stats.getMaxLeaseWait()).isLessThan(Duration.ofMillis(50));
+
+        // Waiting for a lease to be returned is
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Lease<ExpensiveObject> l2 = pool.lease();
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            l1.close();
+        });
+        try (Lease<ExpensiveObject> l3 = pool.lease()) {
+            assertThat(pool.getStats().getMaxLeaseWait()).isGreaterThanOrEqualTo(Duration.ofMillis(90));
+        }
+        l2.close();
+        pool.close();
+    }
+
+    @Test
+    public void detectAndReclaimLeakedLeases() throws InterruptedException {
+        AtomicInteger idx = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+        List<Pool.LeakReport<ExpensiveObject>> leaks = new CopyOnWriteArrayList<>();
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> new ExpensiveObject(idx.getAndIncrement()))
+                .withMaxSize(2)
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withMaxLeaseDuration(Duration.ofMillis(50))
+                .withLeakSiteSamplingRate(1)
+                .withLeakHandler(leaks::add)
+                .withReclaimLeakedLeases(true)
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .build();
+
+        Lease<ExpensiveObject> leaked = pool.lease();
+        Thread.sleep(100);
+        Lease<ExpensiveObject> l2 = pool.lease();
+        pool.detectLeaks();
+
+        assertThat(leaks).hasSize(1);
+        assertThat(leaks.get(0).getObject().idx).isEqualTo(0);
+        assertThat(leaks.get(0).getLeaseDuration()).isGreaterThan(Duration.ofMillis(50));
+        assertThat(leaks.get(0).getLeaseSite()).isPresent();
+        assertThat(finalized.get()).isEqualTo(1);
+
+        // The reclaimed lease can no longer be used, and closing it does not affect the new holder of the slot
+        assertThatIllegalStateException().isThrownBy(() -> { leaked.getObject(); });
+        Lease<ExpensiveObject> l3 = pool.lease();
+        leaked.close();
+        assertThat(l3.getObject().idx).isEqualTo(2);
+        assertThat(pool.getStats().getReclaimedCount()).isEqualTo(1);
+
+        l2.close();
+        l3.close();
+        pool.close();
+    }
+
+    @Test
+    public void leaseBeingPreparedIsNotReclaimed() throws Exception {
+        CountDownLatch factoryStarted = new CountDownLatch(1);
+        CountDownLatch factoryDone = new CountDownLatch(1);
+        AtomicInteger finalized = new AtomicInteger(0);
+        List<Pool.LeakReport<ExpensiveObject>> leaks = new CopyOnWriteArrayList<>();
+
+        Pool<ExpensiveObject> pool = Pool.newBuilder(() -> {
+            factoryStarted.countDown();
+            try {
+                factoryDone.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ExpensiveObject(0);
+        })
+                .withObjectFinalizer(o -> finalized.incrementAndGet())
+                .withMaxLeaseDuration(Duration.ofMillis(10))
+                .withLeakHandler(leaks::add)
+                .withReclaimLeakedLeases(true)
+                .withMaintenanceInterval(Duration.ofHours(1))
+                .build();
+
+        // The first lease of a slot has no previous lease time, which must not be mistaken for an overdue lease
+        Future<Lease<ExpensiveObject>> leasing = ForkJoinPool.commonPool().submit(() -> pool.lease());
+        assertThat(factoryStarted.await(1, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(50);
+        pool.detectLeaks();
+        assertThat(leaks).isEmpty();
+
+        factoryDone.countDown();
+        Lease<ExpensiveObject> l = leasing.get(1, TimeUnit.SECONDS);
+        assertThat(l.getObject().idx).isEqualTo(0);
+        assertThat(finalized.get()).isEqualTo(0);
+        assertThat(pool.getStats().getReclaimedCount()).isEqualTo(0);
+
+        // Once leased, the lease time counts
+        Thread.sleep(50);
+        pool.detectLeaks();
+        assertThat(leaks).hasSize(1);
+        assertThat(finalized.get()).isEqualTo(1);
+        assertThatIllegalStateException().isThrownBy(() -> { l.getObject(); });
+        pool.close();
+    }
+
+    @Test
+    public void closeWithTimeout() throws InterruptedException {
+        AtomicInteger finalized = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = new Pool<>(2, () -> new ExpensiveObject(0), null,
+                o -> finalized.incrementAndGet());
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        pool.lease().close();
+
+        long start = System.currentTimeMillis();
+        assertThat(pool.close(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isBetween(100L, 1000L);
+        assertThat(finalized.get()).isEqualTo(2);
+        assertThatIllegalStateException().isThrownBy(() -> { l1.getObject(); });
+
+        Pool<ExpensiveObject> pool2 = new Pool<>(2, () -> new ExpensiveObject(0), null, null);
+        pool2.lease().close();
+        assertThat(pool2.close(100, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    public void closeWithTimeoutGivesUpOnLeasesBeingPrepared() throws Exception {
+        AtomicInteger created = new AtomicInteger(0);
+        AtomicInteger finalized = new AtomicInteger(0);
+        CountDownLatch factoryEntered = new CountDownLatch(1);
+        CountDownLatch unblockFactory = new CountDownLatch(1);
+
+        Pool<ExpensiveObject> pool = new Pool<>(2, () -> {
+            int idx = created.getAndIncrement();
+            if (idx == 1) {
+                factoryEntered.countDown();
+                try {
+                    unblockFactory.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return new ExpensiveObject(idx);
+        }, null, o -> finalized.incrementAndGet());
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        Future<Lease<ExpensiveObject>> blocked = ForkJoinPool.commonPool().submit(() -> pool.lease());
+        assertThat(factoryEntered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // The lease held is reclaimed, while the one stuck in the factory is given up on
+        long start = System.currentTimeMillis();
+        assertThat(pool.close(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isBetween(100L, 2000L);
+        assertThat(finalized.get()).isEqualTo(1);
+        assertThatIllegalStateException().isThrownBy(() -> { l1.getObject(); });
+
+        // The object is finalized when the lease which was being prepared is released
+        unblockFactory.countDown();
+        Lease<ExpensiveObject> l2 = blocked.get(5, TimeUnit.SECONDS);
+        assertThat(finalized.get()).isEqualTo(1);
+        l2.close();
+        assertThat(finalized.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void leaseAll() throws InterruptedException, TimeoutException, ExecutionException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = new Pool<>(4, () -> new ExpensiveObject(idx.getAndIncrement()), null, null);
+
+        Lease<ExpensiveObject> l1 = pool.lease();
+        try (Pool.Leases<ExpensiveObject> leases = pool.leaseAll(3)) {
+            assertThat(leases.size()).isEqualTo(3);
+            assertThat(leases.getObject(0).idx).isEqualTo(1);
+            assertThat(leases.getObject(2).idx).isEqualTo(3);
+        }
+
+        // Nothing is leased unless all requested objects are available
+        Lease<ExpensiveObject> l2 = pool.lease();
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> { pool.leaseAll(3, 100, TimeUnit.MILLISECONDS); });
+        try (Pool.Leases<ExpensiveObject> leases = pool.leaseAll(2, 100, TimeUnit.MILLISECONDS)) {
+            assertThat(pool.getStats().getLeased()).isEqualTo(4);
+        }
+
+        Future<Pool.Leases<ExpensiveObject>> waiting = ForkJoinPool.commonPool().submit(() -> pool.leaseAll(4));
+        Thread.sleep(100);
+        l1.close();
+        assertThat(waiting.isDone()).isFalse();
+        l2.close();
+        try (Pool.Leases<ExpensiveObject> leases = waiting.get()) {
+            assertThat(leases.size()).isEqualTo(4);
+        }
+        assertThat(pool.getStats().getLeased()).isEqualTo(0);
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> { pool.leaseAll(5); });
+        pool.close();
+    }
+
+    @Test
+    public void leaseAllIsNotStarvedBySingleLeases() throws Exception {
+        Pool<ExpensiveObject> pool = new Pool<>(4, () -> new ExpensiveObject(0), null, null);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> {
+                while (running.get()) {
+                    try (Lease<ExpensiveObject> l = pool.lease()) {
+                        Thread.yield();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                try (Pool.Leases<ExpensiveObject> leases = pool.leaseAll(4, 5, TimeUnit.SECONDS)) {
+                    assertThat(leases.size()).isEqualTo(4);
+                }
+            }
+        } finally {
+            running.set(false);
+            for (Future<?> f : results) {
+                f.get();
+            }
+            executor.shutdown();
+        }
+        pool.close();
+    }
+
+    @Test
+    public void leaseAllReleasesEverythingOnFailure() throws InterruptedException, TimeoutException {
+        AtomicInteger idx = new AtomicInteger(0);
+
+        Pool<ExpensiveObject> pool = new Pool<>(3, () -> {
+            if (idx.get() == 1) {
+                idx.incrementAndGet();
+                throw new IllegalStateException("Factory failed");
+            }
+            return new ExpensiveObject(idx.getAndIncrement());
+        }, null, null);
+
+        assertThatIllegalStateException().isThrownBy(() -> { pool.leaseAll(3); });
+        assertThat(pool.getStats().getLeased()).isEqualTo(0);
+        try (Pool.Leases<ExpensiveObject> leases = pool.leaseAll(3, 100, TimeUnit.MILLISECONDS)) {
+            assertThat(leases.size()).isEqualTo(3);
+        }
+        pool.close();
+    }
+
     class ExpensiveObject {
         final int idx;
+        final AtomicBoolean inUse = new AtomicBoolean(false);
 
         public ExpensiveObject(int idx) {
             this.idx = idx;
@@ -1,13 +1,22 @@
 package no.nb.nna.veidemann.commons.util;
 
 import com.google.protobuf.ByteString;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class Sha1DigestTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void getDigestString() throws Exception {
         Sha1Digest d = new Sha1Digest();
@@ -94,4 +103,53 @@ public class Sha1DigestTest {
         d.update(v4);
         assertThat(d).hasToString("sha1:855426068ee8939df6bce2c2c4b1e7346532a133");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void updateFile() throws Exception {
+        Path small = tempFolder.newFile().toPath();
+        Files.write(small, "xfoo\r\ny".getBytes());
+
+        try (FileChannel channel = FileChannel.open(small)) {
+            Sha1Digest d = new Sha1Digest();
+            d.update(channel, 1, 5);
+            assertThat(d).hasToString("sha1:855426068ee8939df6bce2c2c4b1e7346532a133");
+            assertThat(channel.position()).isEqualTo(0);
+
+            // Regions are truncated at end of file
+            d = new Sha1Digest();
+            d.update(channel, 1, 3).update(channel, 4, Long.MAX_VALUE);
+            assertThat(d).hasToString(new Sha1Digest().update("foo\r\ny".getBytes()).toString());
+        }
+
+        // Large enough to be memory mapped
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(content);
+        Path large = tempFolder.newFile().toPath();
+        Files.write(large, content);
+        assertThat(new Sha1Digest().update(large)).hasToString(new Sha1Digest().update(content).toString());
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        Sha1Digest d = new Sha1Digest();
+        d.checkpoint("empty");
+        d.update(ByteString.copyFromUtf8("foo"));
+        d.checkpoint("header").checkpoint("header2");
+        Sha1Digest copy = d.clone();
+        d.update((byte) '\r');
+        d.update((byte) '\n');
+        d.checkpoint("all");
+
+        assertThat(d.getCheckpoint("missing")).isNull();
+        assertThat(d.getPrefixedCheckpointString("empty")).isEqualTo("sha1:da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        assertThat(d.getPrefixedCheckpointString("header")).isEqualTo("sha1:0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        assertThat(d.getCheckpoint("header2")).isSameAs(d.getCheckpoint("header"));
+        assertThat(d.getPrefixedCheckpointString("all")).isEqualTo("sha1:855426068ee8939df6bce2c2c4b1e7346532a133");
+        assertThat(d).hasToString("sha1:855426068ee8939df6bce2c2c4b1e7346532a133");
+
+        // Checkpoints made before cloning are shared with the clone
+        copy.update((byte) 'x');
+        assertThat(copy.getPrefixedCheckpointString("header")).isEqualTo("sha1:0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        assertThat(copy.getCheckpoint("all")).isNull();
+    }
+}